@@ -0,0 +1,503 @@
+package com.yonyou.cloud.track;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yonyou.cloud.track.util.ByteArrayBuffer;
+
+/**
+ * 基于预分配环形队列的异步日志消费者
+ *
+ * 业务线程通过原子递增的序号无锁地申请槽位并发布事件，由一个独立的写线程负责序列化和写文件，
+ * 业务线程不再竞争同一把锁，也不会在调用线程上触发文件写入
+ *
+ * 队列满时业务线程按照 {@link WaitStrategy} 等待，等待的次数和总时长可以通过
+ * {@link #getProducerWaitCount()} 和 {@link #getProducerWaitNanos()} 获得
+ *
+ * 写文件失败时数据保留在缓冲区中等待重试，缓冲区达到上限后丢弃新的事件，丢弃数可以通过
+ * {@link #getDroppedCount()} 获得
+ */
+public class AsyncRingBufferConsumer implements Track.Consumer {
+	private static final Logger loger = LoggerFactory.getLogger(AsyncRingBufferConsumer.class);
+
+	/**
+	 * 生产者在队列满、写线程在队列空时的等待方式
+	 */
+	public enum WaitStrategy {
+		/** 忙等，延迟最低，持续占用CPU */
+		SPIN,
+		/** 让出CPU后重试 */
+		YIELD,
+		/** 短暂park后重试 */
+		PARK,
+		/** 基于监视器等待唤醒，CPU占用最低 */
+		BLOCKING
+	}
+
+	private final static int DEFAULT_RING_SIZE = 8192;
+	private final static long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	private final static long BLOCKING_WAIT_MILLIS = 10;
+	// 写入失败后，缓冲区写满触发的重试间隔
+	private final static long RETRY_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final Object[] entries;
+	private final AtomicLongArray published;
+	private final int mask;
+
+	// 下一个待申请的序号
+	private final AtomicLong claimSequence = new AtomicLong(0);
+	// 写线程已经取走的最大序号
+	private final AtomicLong consumedSequence = new AtomicLong(-1);
+	// 已经写入文件的最大序号
+	private final AtomicLong writtenSequence = new AtomicLong(-1);
+	// 请求刷新到的序号
+	private final AtomicLong flushSequence = new AtomicLong(-1);
+	// 最近一次写入失败时缓冲区中的最大序号
+	private final AtomicLong failedSequence = new AtomicLong(-1);
+
+	private final LongAdder producerWaitCount = new LongAdder();
+	private final LongAdder producerWaitNanos = new LongAdder();
+	private final LongAdder droppedCount = new LongAdder();
+	private final LongAdder writeFailedCount = new LongAdder();
+
+	private final WaitStrategy waitStrategy;
+	private final Object blockingLock = new Object();
+	private volatile boolean writerWaiting = false;
+	private volatile boolean producerWaiting = false;
+	private volatile boolean running = true;
+
+	private final JsonEventEncoder encoder;
+	private final String filenamePrefix;
+	private final int bufferSize;
+	private final ByteArrayBuffer messageBuffer;
+	private volatile long maxBufferedBytes = Track.InnerLoggingConsumer.DEFAULT_MAX_BUFFERED_BYTES;
+	// 只由写线程访问，写入失败后在此之前不因缓冲区写满而重试
+	private long retryNanos = System.nanoTime();
+	private volatile RollingPolicy rollingPolicy = RollingPolicy.daily();
+	// 只由写线程访问
+	private RollingPolicy rollingFilePolicy;
+	private RollingFile rollingFile;
+	private Housekeeper housekeeper;
+	private final Track.LoggingFileWriterFactory fileWriterFactory;
+	private Track.LoggingFileWriter fileWriter;
+
+	private final Thread writerThread;
+
+	public AsyncRingBufferConsumer(final String filenamePrefix) throws IOException {
+		this(filenamePrefix, DEFAULT_RING_SIZE, 8192, WaitStrategy.PARK);
+	}
+
+	public AsyncRingBufferConsumer(final String filenamePrefix, int ringSize, int bufferSize, WaitStrategy waitStrategy)
+			throws IOException {
+		this(new Track.LoggingFileWriterFactory() {
+			@Override
+			public Track.LoggingFileWriter getFileWriter(String fileName, String scheduleFileName)
+					throws FileNotFoundException {
+				return new Track.ConcurrentLoggingConsumer.InnerLoggingFileWriter(scheduleFileName);
+			}
+		}, filenamePrefix, ringSize, bufferSize, waitStrategy);
+	}
+
+	AsyncRingBufferConsumer(Track.LoggingFileWriterFactory fileWriterFactory, String filenamePrefix, int ringSize,
+			int bufferSize, WaitStrategy waitStrategy) throws IOException {
+		if (ringSize < 2 || Integer.bitCount(ringSize) != 1) {
+			throw new IllegalArgumentException("ring size must be a power of 2.");
+		}
+		this.entries = new Object[ringSize];
+		this.published = new AtomicLongArray(ringSize);
+		for (int i = 0; i < ringSize; i++) {
+			published.set(i, -1);
+		}
+		this.mask = ringSize - 1;
+		this.waitStrategy = waitStrategy;
+
+		this.fileWriterFactory = fileWriterFactory;
+		this.filenamePrefix = filenamePrefix;
+		this.bufferSize = bufferSize;
+		this.messageBuffer = new ByteArrayBuffer(bufferSize);
+		this.encoder = new JsonEventEncoder();
+
+		this.writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		}, "track-ring-buffer-writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	@Override
+	public void send(Map<String, Object> message) {
+		if (!running) {
+			throw new RuntimeException("ring buffer consumer has been closed.");
+		}
+
+		final long sequence = claimSequence.getAndIncrement();
+		final long wrapPoint = sequence - entries.length;
+		if (wrapPoint > consumedSequence.get()) {
+			long start = System.nanoTime();
+			while (wrapPoint > consumedSequence.get()) {
+				if (!writerThread.isAlive()) {
+					droppedCount.increment();
+					throw new RuntimeException("ring buffer consumer has been closed.");
+				}
+				producerWaiting = true;
+				waitForWriter();
+			}
+			producerWaitCount.increment();
+			producerWaitNanos.add(System.nanoTime() - start);
+		}
+
+		final int index = (int) (sequence & mask);
+		entries[index] = message;
+		published.set(index, sequence);
+
+		if (writerWaiting) {
+			signal();
+		}
+
+		if (!running) {
+			// 与 close 并发时写线程可能已经退出，等写线程结束后确认事件是否被取走
+			try {
+				writerThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (consumedSequence.get() < sequence) {
+				droppedCount.increment();
+				throw new RuntimeException("ring buffer consumer has been closed.");
+			}
+		}
+	}
+
+	/**
+	 * 等待已发布的事件全部写入文件
+	 *
+	 * @throws RuntimeException
+	 *             写入文件失败，数据仍保留在缓冲区中等待下一次刷新
+	 */
+	@Override
+	public void flush() {
+		final long target = claimSequence.get() - 1;
+		failedSequence.set(-1);
+		requestFlush(target);
+		while (writtenSequence.get() < target && failedSequence.get() < target && writerThread.isAlive()) {
+			producerWaiting = true;
+			waitForWriter();
+		}
+		if (writtenSequence.get() < target) {
+			throw new RuntimeException("fail to flush ring buffer to file.");
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (housekeeper != null) {
+				housekeeper.close();
+			}
+		}
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			// 写线程退出前还会再写一次，仍然失败时丢弃并计数
+			loger.error("fail to flush ring buffer before close.", e);
+		}
+		running = false;
+		signal();
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return 生产者因队列满而等待的次数
+	 */
+	public long getProducerWaitCount() {
+		return producerWaitCount.sum();
+	}
+
+	/**
+	 * @return 生产者因队列满而等待的总时长，单位纳秒
+	 */
+	public long getProducerWaitNanos() {
+		return producerWaitNanos.sum();
+	}
+
+	/**
+	 * 设置写入失败时缓冲区最多保留的字节数，达到上限后丢弃新的事件
+	 */
+	public void setMaxBufferedBytes(long maxBufferedBytes) {
+		if (maxBufferedBytes < 1) {
+			throw new IllegalArgumentException("max buffered bytes must be positive.");
+		}
+		this.maxBufferedBytes = maxBufferedBytes;
+	}
+
+	/**
+	 * @return 因缓冲区达到上限或者消费者已关闭而丢弃的事件数
+	 */
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+
+	/**
+	 * @return 写入文件失败的次数
+	 */
+	public long getWriteFailedCount() {
+		return writeFailedCount.sum();
+	}
+
+	/**
+	 * 设置日志文件的滚动策略，默认按天滚动，写线程下一次写入时生效
+	 */
+	public synchronized void setRollingPolicy(RollingPolicy rollingPolicy) {
+		this.rollingPolicy = rollingPolicy;
+		if (housekeeper != null) {
+			housekeeper.setRollingPolicy(rollingPolicy);
+		}
+	}
+
+	/**
+	 * 设置已滚动日志文件的压缩与保留策略，由后台整理线程执行，null 表示不整理
+	 */
+	public synchronized void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+		if (housekeeper != null) {
+			housekeeper.close();
+			housekeeper = null;
+		}
+		if (retentionPolicy != null) {
+			housekeeper = new Housekeeper(filenamePrefix, rollingPolicy, retentionPolicy);
+		}
+	}
+
+	/**
+	 * @return 已发布但尚未被写线程取走的事件数
+	 */
+	public long getBacklog() {
+		return claimSequence.get() - 1 - consumedSequence.get();
+	}
+
+	private void requestFlush(long target) {
+		long current;
+		do {
+			current = flushSequence.get();
+		} while (current < target && !flushSequence.compareAndSet(current, target));
+		signal();
+	}
+
+	private void drainLoop() {
+		long next = 0;
+		while (true) {
+			final int index = (int) (next & mask);
+			if (published.get(index) == next) {
+				Object message = entries[index];
+				entries[index] = null;
+				consumedSequence.lazySet(next);
+				signalProducers();
+				append(message);
+				if (messageBuffer.length() >= bufferSize && System.nanoTime() - retryNanos >= 0) {
+					writeBuffer(next);
+				}
+				next++;
+				continue;
+			}
+
+			// 队列已空
+			long last = next - 1;
+			if (flushRequested() || !running) {
+				writeBuffer(last);
+			}
+			if (!running && claimSequence.get() <= next) {
+				break;
+			}
+			writerWaiting = true;
+			if (published.get(index) != next && !flushRequested() && running) {
+				waitForProducer();
+			}
+			writerWaiting = false;
+		}
+
+		if (fileWriter != null) {
+			try {
+				fileWriter.close();
+			} catch (RuntimeException e) {
+				loger.error("fail to close file writer.", e);
+			}
+			fileWriter = null;
+		}
+	}
+
+	/**
+	 * @return 有尚未处理的刷新请求，上一次写入失败后需要新的刷新请求才会重试
+	 */
+	private boolean flushRequested() {
+		return flushSequence.get() > Math.max(writtenSequence.get(), failedSequence.get());
+	}
+
+	@SuppressWarnings("unchecked")
+	private void append(Object message) {
+		if (messageBuffer.length() >= maxBufferedBytes) {
+			droppedCount.increment();
+			return;
+		}
+		try {
+			encoder.encode((Map<String, Object>) message, messageBuffer);
+		} catch (RuntimeException e) {
+			loger.error("fail to process json", e);
+		}
+	}
+
+	private void writeBuffer(long lastSequence) {
+		if (messageBuffer.length() == 0) {
+			writtenSequence.set(lastSequence);
+			signalProducers();
+			return;
+		}
+
+		final ByteBuffer data = messageBuffer.toByteBuffer();
+		try {
+			if (rollingFilePolicy != rollingPolicy) {
+				rollingFilePolicy = rollingPolicy;
+				rollingFile = new RollingFile(filenamePrefix, rollingFilePolicy);
+			}
+			String filename = rollingFile.fileName(System.currentTimeMillis());
+
+			if (fileWriter != null && !fileWriter.isValid(filename)) {
+				fileWriter.close();
+				fileWriter = null;
+			}
+
+			if (fileWriter == null) {
+				fileWriter = this.fileWriterFactory.getFileWriter(filenamePrefix, filename);
+			}
+
+			if (fileWriter.write(new ByteBuffer[] { data })) {
+				rollingFile.written(messageBuffer.length());
+				messageBuffer.reset();
+				writtenSequence.set(lastSequence);
+				signalProducers();
+				return;
+			}
+			discardWritten(data);
+			writeFailed(lastSequence, null);
+		} catch (Exception e) {
+			discardWritten(data);
+			writeFailed(lastSequence, e);
+		}
+	}
+
+	/**
+	 * 写入失败后去掉已经写入文件的部分，重试时从断点继续，避免重复写入
+	 */
+	private void discardWritten(ByteBuffer data) {
+		if (data.position() > 0) {
+			if (rollingFile != null) {
+				rollingFile.written(data.position());
+			}
+			messageBuffer.discard(data.position());
+		}
+	}
+
+	/**
+	 * 写入失败时保留缓冲区等待下一次写入，通知等待 flush 的线程写入失败
+	 */
+	private void writeFailed(long lastSequence, Exception e) {
+		if (e != null) {
+			loger.error("fail to write ring buffer to file.", e);
+		} else {
+			loger.error("fail to write ring buffer to file.");
+		}
+		writeFailedCount.increment();
+		retryNanos = System.nanoTime() + RETRY_INTERVAL_NANOS;
+		if (!running) {
+			// 关闭时不再重试，避免写线程无法退出
+			final byte[] data = messageBuffer.array();
+			int lines = 0;
+			for (int i = 0; i < messageBuffer.length(); i++) {
+				if (data[i] == '\n') {
+					lines++;
+				}
+			}
+			droppedCount.add(lines);
+			messageBuffer.reset();
+		}
+		failedSequence.set(lastSequence);
+		signalProducers();
+	}
+
+	private void signalProducers() {
+		if (producerWaiting) {
+			producerWaiting = false;
+			signal();
+		}
+	}
+
+	private void signal() {
+		if (waitStrategy == WaitStrategy.BLOCKING) {
+			synchronized (blockingLock) {
+				blockingLock.notifyAll();
+			}
+		} else if (waitStrategy == WaitStrategy.PARK) {
+			LockSupport.unpark(writerThread);
+		}
+	}
+
+	private void waitForWriter() {
+		switch (waitStrategy) {
+		case SPIN:
+			break;
+		case YIELD:
+			Thread.yield();
+			break;
+		case PARK:
+			LockSupport.parkNanos(PARK_NANOS);
+			break;
+		case BLOCKING:
+			synchronized (blockingLock) {
+				try {
+					blockingLock.wait(BLOCKING_WAIT_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			break;
+		}
+	}
+
+	private void waitForProducer() {
+		switch (waitStrategy) {
+		case SPIN:
+			break;
+		case YIELD:
+			Thread.yield();
+			break;
+		case PARK:
+			LockSupport.parkNanos(this, PARK_NANOS * 20);
+			break;
+		case BLOCKING:
+			synchronized (blockingLock) {
+				try {
+					blockingLock.wait(BLOCKING_WAIT_MILLIS);
+				} catch (InterruptedException e) {
+					// 写线程只在 close 时退出
+				}
+			}
+			break;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.yonyou.cloud.track;
+
+/**
+ * 定位埋点接口的调用位置，用于填充 $lib_detail
+ *
+ * Java 8 下只能通过异常栈获取调用位置，Java 9 及以上版本会使用 META-INF/versions/9 下基于
+ * StackWalker 的实现，只遍历到第一个 SDK 之外的栈帧
+ */
+final class CallerLocator {
+
+	private CallerLocator() {
+	}
+
+	/**
+	 * @return 第一个不属于 SDK 的栈帧，找不到时返回 null
+	 */
+	static StackTraceElement locate() {
+		StackTraceElement[] trace = (new Throwable()).getStackTrace();
+		for (StackTraceElement element : trace) {
+			if (!isSdkFrame(element.getClassName())) {
+				return element;
+			}
+		}
+		return null;
+	}
+
+	static boolean isSdkFrame(String className) {
+		return className.startsWith("com.yonyou.cloud.track.Track")
+				|| className.equals("com.yonyou.cloud.track.CallerLocator");
+	}
+}
@@ -0,0 +1,155 @@
+package com.yonyou.cloud.track;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 基于 FileChannel 的日志文件写入
+ *
+ * 文件通道在整个写入周期内保持打开，数据分批复制到有限个池化的堆外缓冲区，每批通过一次聚集写写入文件，
+ * 写完再复制下一批。只有在文件被其他进程共享时才加文件锁
+ */
+class ChannelLoggingFileWriter implements Track.LoggingFileWriter {
+
+	// 每次写入最多占用的堆外缓冲区个数
+	private final static int MAX_CHUNKS_PER_WRITE = 16;
+
+	private final String fileName;
+	private final FileChannel channel;
+	private final boolean sharedFile;
+
+	ChannelLoggingFileWriter(final String fileName, final boolean sharedFile) throws IOException {
+		this(fileName, fileName, sharedFile);
+	}
+
+	/**
+	 * @param fileName
+	 *            按日期生成的文件名，用于判断是否需要换文件
+	 * @param path
+	 *            实际写入的文件路径
+	 * @param sharedFile
+	 *            是否有其他进程同时写同一个文件
+	 */
+	ChannelLoggingFileWriter(final String fileName, final String path, final boolean sharedFile) throws IOException {
+		this.fileName = fileName;
+		this.sharedFile = sharedFile;
+		this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+	}
+
+	@Override
+	public boolean isValid(final String fileName) {
+		return this.fileName.equals(fileName);
+	}
+
+	@Override
+	public boolean write(final ByteBuffer[] buffers) {
+		long total = 0;
+		for (ByteBuffer buffer : buffers) {
+			total += buffer.remaining();
+		}
+		if (total == 0) {
+			return true;
+		}
+
+		// 复制使用源缓冲区的副本，源缓冲区的 position 只随实际写入文件的字节前进
+		final ByteBuffer[] sources = new ByteBuffer[buffers.length];
+		for (int i = 0; i < buffers.length; i++) {
+			sources[i] = buffers[i].duplicate();
+		}
+
+		long written = 0;
+		final ByteBuffer[] chunks = new ByteBuffer[(int) Math.min(
+				(total - written + DirectBufferPool.CHUNK_SIZE - 1) / DirectBufferPool.CHUNK_SIZE, MAX_CHUNKS_PER_WRITE)];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = DirectBufferPool.acquire();
+		}
+		FileLock lock = null;
+		try {
+			if (sharedFile) {
+				lock = channel.lock(0, Long.MAX_VALUE, false);
+			}
+			while (written < total) {
+				final int count = fill(sources, chunks);
+				final ByteBuffer last = chunks[count - 1];
+				while (last.hasRemaining()) {
+					long n = channel.write(chunks, 0, count);
+					advance(buffers, n);
+					written += n;
+				}
+			}
+		} catch (Exception e) {
+			throw new RuntimeException("fail to write file.", e);
+		} finally {
+			if (lock != null) {
+				try {
+					lock.release();
+				} catch (IOException e) {
+					throw new RuntimeException("fail to release file lock.", e);
+				}
+			}
+			for (ByteBuffer chunk : chunks) {
+				DirectBufferPool.release(chunk);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * 按写入文件的字节数依次前进源缓冲区的 position
+	 */
+	private static void advance(final ByteBuffer[] buffers, long bytes) {
+		for (int i = 0; i < buffers.length && bytes > 0; i++) {
+			int n = (int) Math.min(bytes, buffers[i].remaining());
+			buffers[i].position(buffers[i].position() + n);
+			bytes -= n;
+		}
+	}
+
+	/**
+	 * 将源缓冲区中剩余的内容依次复制到堆外缓冲区中，直到堆外缓冲区用完，源缓冲区的 position 随之前进
+	 *
+	 * @return 用到的堆外缓冲区个数
+	 */
+	private static int fill(final ByteBuffer[] sources, final ByteBuffer[] chunks) {
+		int used = 0;
+		ByteBuffer chunk = chunks[0];
+		chunk.clear();
+		for (ByteBuffer source : sources) {
+			while (source.hasRemaining()) {
+				if (!chunk.hasRemaining()) {
+					chunk.flip();
+					if (++used == chunks.length) {
+						return used;
+					}
+					chunk = chunks[used];
+					chunk.clear();
+				}
+				if (source.remaining() <= chunk.remaining()) {
+					chunk.put(source);
+				} else {
+					int limit = source.limit();
+					source.limit(source.position() + chunk.remaining());
+					chunk.put(source);
+					source.limit(limit);
+				}
+			}
+		}
+		chunk.flip();
+		return used + 1;
+	}
+
+	@Override
+	public void close() {
+		try {
+			channel.close();
+		} catch (Exception e) {
+			throw new RuntimeException("fail to close file channel.", e);
+		}
+	}
+}
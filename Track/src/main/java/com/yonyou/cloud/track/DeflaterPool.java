@@ -0,0 +1,52 @@
+package com.yonyou.cloud.track;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * 按压缩级别池化的 Deflater，避免每个请求分配和释放 zlib 的本地内存
+ *
+ * 池中的 Deflater 是 nowrap 模式，gzip 头和尾由调用方写入
+ */
+final class DeflaterPool {
+
+	private final static int MAX_POOLED_PER_LEVEL = 16;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final static ConcurrentLinkedQueue<Deflater>[] POOLS = new ConcurrentLinkedQueue[10];
+	private final static AtomicInteger[] POOLED = new AtomicInteger[10];
+
+	static {
+		for (int i = 0; i < POOLS.length; i++) {
+			POOLS[i] = new ConcurrentLinkedQueue<Deflater>();
+			POOLED[i] = new AtomicInteger();
+		}
+	}
+
+	private DeflaterPool() {
+	}
+
+	/**
+	 * @param level
+	 *            压缩级别，0 到 9
+	 */
+	static Deflater acquire(int level) {
+		Deflater deflater = POOLS[level].poll();
+		if (deflater == null) {
+			return new Deflater(level, true);
+		}
+		POOLED[level].decrementAndGet();
+		return deflater;
+	}
+
+	static void release(int level, Deflater deflater) {
+		deflater.reset();
+		if (POOLED[level].incrementAndGet() <= MAX_POOLED_PER_LEVEL) {
+			POOLS[level].offer(deflater);
+		} else {
+			POOLED[level].decrementAndGet();
+			deflater.end();
+		}
+	}
+}
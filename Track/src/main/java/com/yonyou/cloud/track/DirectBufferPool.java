@@ -0,0 +1,38 @@
+package com.yonyou.cloud.track;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 固定大小的堆外缓冲区池，避免每次写文件时分配堆外内存
+ */
+final class DirectBufferPool {
+
+	final static int CHUNK_SIZE = 64 * 1024;
+	private final static int MAX_POOLED_CHUNKS = 64;
+
+	private final static ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final static AtomicInteger POOLED = new AtomicInteger();
+
+	private DirectBufferPool() {
+	}
+
+	static ByteBuffer acquire() {
+		ByteBuffer buffer = POOL.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(CHUNK_SIZE);
+		}
+		POOLED.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	static void release(ByteBuffer buffer) {
+		if (POOLED.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+			POOL.offer(buffer);
+		} else {
+			POOLED.decrementAndGet();
+		}
+	}
+}
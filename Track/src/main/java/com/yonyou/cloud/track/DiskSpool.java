@@ -0,0 +1,445 @@
+package com.yonyou.cloud.track;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 网络发送前的本地预写队列
+ *
+ * 批次先追加到目录下的分段文件 spool-序号.log，发送线程按顺序读取，发送成功后确认。
+ * 确认过的最远位置写入 checkpoint 文件，进程重启后从该位置继续读取，因此同一批次可能被重复发送。
+ * 分段中的记录为 [长度][事件数][CRC32][数据]，末尾不完整的记录在打开时截掉。
+ *
+ * 追加只写入操作系统的页缓存，不逐条 fsync，能够承受进程退出，不保证承受断电
+ */
+final class DiskSpool {
+	private static final Logger loger = LoggerFactory.getLogger(DiskSpool.class);
+
+	private final static int HEADER_SIZE = 12;
+	private final static String CHECKPOINT_FILE = "checkpoint";
+	private final static Pattern SEGMENT_PATTERN = Pattern.compile("spool-(\\d+)\\.log");
+
+	/**
+	 * 读出的一个批次，确认前保存在 inFlight 中
+	 */
+	static final class Entry {
+		final byte[] data;
+		final int count;
+		private final long segment;
+		private final long nextOffset;
+		private boolean acked;
+
+		private Entry(byte[] data, int count, long segment, long nextOffset) {
+			this.data = data;
+			this.count = count;
+			this.segment = segment;
+			this.nextOffset = nextOffset;
+		}
+	}
+
+	private final File directory;
+	private final long maxBytes;
+	private final long segmentSize;
+	private final Track.OverflowPolicy overflowPolicy;
+
+	// 所有分段的序号和大小
+	private final TreeMap<Long, Long> segments = new TreeMap<Long, Long>();
+	private long totalBytes;
+
+	private long writeSegment;
+	private FileChannel writeChannel;
+
+	private long readSegment;
+	private long readOffset;
+	private FileChannel readChannel;
+
+	private long checkpointSegment;
+	private long checkpointOffset;
+	private final ArrayDeque<Entry> inFlight = new ArrayDeque<Entry>();
+
+	private long evictedCount;
+	private long droppedCount;
+	private boolean closed;
+
+	/**
+	 * @param maxBytes
+	 *            所有分段合计的大小上限
+	 * @param segmentSize
+	 *            单个分段的大小，写满后换新的分段
+	 * @param overflowPolicy
+	 *            超过大小上限时的处理方式，只支持 DROP_NEWEST 和 DROP_OLDEST
+	 */
+	DiskSpool(String directory, long maxBytes, long segmentSize, Track.OverflowPolicy overflowPolicy)
+			throws IOException {
+		if (overflowPolicy != Track.OverflowPolicy.DROP_NEWEST && overflowPolicy != Track.OverflowPolicy.DROP_OLDEST) {
+			throw new IllegalArgumentException("spool only supports DROP_NEWEST and DROP_OLDEST.");
+		}
+		this.directory = new File(directory);
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new IOException("fail to create spool directory " + directory);
+		}
+		this.maxBytes = maxBytes;
+		// 至少保留几个分段，淘汰时才不会一次丢掉大部分数据
+		this.segmentSize = Math.max(Math.min(segmentSize, maxBytes / 4), 1);
+		this.overflowPolicy = overflowPolicy;
+		recover();
+	}
+
+	private void recover() throws IOException {
+		List<Long> found = new ArrayList<Long>();
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				Matcher matcher = SEGMENT_PATTERN.matcher(name);
+				if (matcher.matches()) {
+					found.add(Long.parseLong(matcher.group(1)));
+				}
+			}
+		}
+		Collections.sort(found);
+
+		readCheckpoint(found.isEmpty() ? 0 : found.get(0));
+		for (Long segment : found) {
+			if (segment < checkpointSegment) {
+				Files.deleteIfExists(segmentPath(segment));
+			} else {
+				long size = segmentPath(segment).toFile().length();
+				segments.put(segment, size);
+				totalBytes += size;
+			}
+		}
+
+		if (segments.isEmpty()) {
+			writeSegment = checkpointSegment;
+			checkpointOffset = 0;
+			segments.put(writeSegment, 0L);
+		} else {
+			writeSegment = segments.lastKey();
+		}
+		writeChannel = FileChannel.open(segmentPath(writeSegment), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		truncateTornTail();
+
+		readSegment = checkpointSegment < segments.firstKey() ? segments.firstKey() : checkpointSegment;
+		readOffset = readSegment == checkpointSegment ? Math.min(checkpointOffset, segments.get(readSegment)) : 0;
+	}
+
+	/**
+	 * 进程在追加过程中退出时，最后一个分段末尾可能有不完整的记录
+	 */
+	private void truncateTornTail() throws IOException {
+		final long size = writeChannel.size();
+		long offset = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (offset + HEADER_SIZE <= size) {
+			header.clear();
+			readFully(writeChannel, header, offset);
+			int length = header.getInt(0);
+			if (length < 0 || offset + HEADER_SIZE + length > size) {
+				break;
+			}
+			offset += HEADER_SIZE + length;
+		}
+		if (offset < size) {
+			loger.warn("truncate torn spool record at " + segmentPath(writeSegment) + ":" + offset);
+			writeChannel.truncate(offset);
+			totalBytes -= size - offset;
+		}
+		segments.put(writeSegment, offset);
+	}
+
+	private void readCheckpoint(long defaultSegment) throws IOException {
+		Path path = new File(directory, CHECKPOINT_FILE).toPath();
+		checkpointSegment = defaultSegment;
+		checkpointOffset = 0;
+		if (Files.exists(path)) {
+			byte[] bytes = Files.readAllBytes(path);
+			if (bytes.length == 16) {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				checkpointSegment = buffer.getLong();
+				checkpointOffset = buffer.getLong();
+			}
+		}
+	}
+
+	private void writeCheckpoint() throws IOException {
+		Path tmp = new File(directory, CHECKPOINT_FILE + ".tmp").toPath();
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.putLong(checkpointSegment).putLong(checkpointOffset);
+		Files.write(tmp, buffer.array());
+		Files.move(tmp, new File(directory, CHECKPOINT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private Path segmentPath(long segment) {
+		return new File(directory, String.format("spool-%020d.log", segment)).toPath();
+	}
+
+	/**
+	 * 追加一个批次
+	 *
+	 * @return 超过大小上限被丢弃时返回 false
+	 */
+	synchronized boolean append(byte[] data, int count) throws IOException {
+		if (closed) {
+			throw new IOException("spool is closed.");
+		}
+		final long recordSize = HEADER_SIZE + data.length;
+		if (totalBytes + recordSize > maxBytes) {
+			if (overflowPolicy == Track.OverflowPolicy.DROP_OLDEST) {
+				while (totalBytes + recordSize > maxBytes && segments.size() > 1) {
+					evictOldest();
+				}
+			}
+			if (totalBytes + recordSize > maxBytes) {
+				droppedCount += count;
+				return false;
+			}
+		}
+
+		long offset = segments.get(writeSegment);
+		if (offset > 0 && offset + recordSize > segmentSize) {
+			roll();
+			offset = 0;
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(data.length).putInt(count).putInt((int) crc.getValue());
+		header.flip();
+		ByteBuffer[] record = { header, ByteBuffer.wrap(data) };
+		writeChannel.position(offset);
+		while (record[1].hasRemaining()) {
+			writeChannel.write(record);
+		}
+		segments.put(writeSegment, offset + recordSize);
+		totalBytes += recordSize;
+		notifyAll();
+		return true;
+	}
+
+	private void roll() throws IOException {
+		writeChannel.close();
+		writeSegment++;
+		writeChannel = FileChannel.open(segmentPath(writeSegment), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		segments.put(writeSegment, 0L);
+	}
+
+	/**
+	 * 删除最早的分段，其中还没有读出的批次计入淘汰数
+	 */
+	private void evictOldest() throws IOException {
+		final long segment = segments.firstKey();
+		final long size = segments.get(segment);
+		if (readSegment == segment) {
+			evictedCount += countRecords(segment, readOffset, size);
+			closeReadChannel();
+			readSegment = segments.higherKey(segment);
+			readOffset = 0;
+		}
+		Files.deleteIfExists(segmentPath(segment));
+		segments.remove(segment);
+		totalBytes -= size;
+		if (checkpointSegment <= segment) {
+			checkpointSegment = segments.firstKey();
+			checkpointOffset = 0;
+			writeCheckpoint();
+		}
+		loger.warn("spool exceeds " + maxBytes + " bytes, evict " + segmentPath(segment));
+	}
+
+	private long countRecords(long segment, long from, long to) throws IOException {
+		FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ);
+		try {
+			long count = 0;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			for (long offset = from; offset + HEADER_SIZE <= to;) {
+				header.clear();
+				readFully(channel, header, offset);
+				count += header.getInt(4);
+				offset += HEADER_SIZE + header.getInt(0);
+			}
+			return count;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * 按顺序读出下一个批次，没有数据时最多等待 timeoutMillis
+	 *
+	 * @return 超时或者已经关闭时返回 null
+	 */
+	synchronized Entry poll(long timeoutMillis) throws IOException, InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (!closed) {
+			final long size = segments.get(readSegment);
+			if (readOffset + HEADER_SIZE <= size) {
+				Entry entry = read(size);
+				if (entry != null) {
+					inFlight.add(entry);
+					return entry;
+				}
+				continue;
+			}
+			if (readSegment != writeSegment) {
+				closeReadChannel();
+				readSegment = segments.higherKey(readSegment);
+				readOffset = 0;
+				continue;
+			}
+
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return null;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return null;
+	}
+
+	/**
+	 * @return 记录损坏时跳过该分段剩余的内容并返回 null
+	 */
+	private Entry read(long size) throws IOException {
+		if (readChannel == null) {
+			readChannel = FileChannel.open(segmentPath(readSegment), StandardOpenOption.READ);
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(readChannel, header, readOffset);
+		final int length = header.getInt(0);
+		final int count = header.getInt(4);
+		final int checksum = header.getInt(8);
+		if (length >= 0 && readOffset + HEADER_SIZE + length <= size) {
+			ByteBuffer data = ByteBuffer.allocate(length);
+			readFully(readChannel, data, readOffset + HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			crc.update(data.array(), 0, length);
+			if ((int) crc.getValue() == checksum) {
+				readOffset += HEADER_SIZE + length;
+				return new Entry(data.array(), count, readSegment, readOffset);
+			}
+		}
+
+		loger.error("corrupted spool record at " + segmentPath(readSegment) + ":" + readOffset + ", skip the rest.");
+		readOffset = size;
+		return null;
+	}
+
+	/**
+	 * 确认批次已经处理完成，checkpoint 前移到最早的未确认批次之前
+	 */
+	synchronized void ack(Entry entry) throws IOException {
+		entry.acked = true;
+		boolean moved = false;
+		while (!inFlight.isEmpty() && inFlight.peekFirst().acked) {
+			Entry head = inFlight.pollFirst();
+			if (head.segment > checkpointSegment
+					|| (head.segment == checkpointSegment && head.nextOffset > checkpointOffset)) {
+				checkpointSegment = head.segment;
+				checkpointOffset = head.nextOffset;
+				moved = true;
+			}
+		}
+		if (!moved) {
+			return;
+		}
+
+		// 写入中的分段已经全部确认并且足够大时换新分段，旧分段随后被删除
+		final long writeSize = segments.get(writeSegment);
+		if (checkpointSegment == writeSegment && checkpointOffset == writeSize && writeSize >= segmentSize / 4) {
+			roll();
+			closeReadChannel();
+			readSegment = writeSegment;
+			readOffset = 0;
+			checkpointSegment = writeSegment;
+			checkpointOffset = 0;
+		}
+		writeCheckpoint();
+
+		// checkpoint 之前的分段已经全部发送完成
+		while (segments.firstKey() < checkpointSegment) {
+			long segment = segments.firstKey();
+			if (segment == readSegment) {
+				break;
+			}
+			Files.deleteIfExists(segmentPath(segment));
+			totalBytes -= segments.remove(segment);
+		}
+	}
+
+	/**
+	 * @return 还没有确认的批次是否为空，包括未读出的和已读出未确认的
+	 */
+	synchronized boolean isDrained() {
+		return inFlight.isEmpty() && readSegment == writeSegment && readOffset >= segments.get(writeSegment);
+	}
+
+	synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * @return DROP_OLDEST 策略下未发送就被淘汰的事件数
+	 */
+	synchronized long getEvictedCount() {
+		return evictedCount;
+	}
+
+	/**
+	 * @return DROP_NEWEST 策略下没有写入的事件数
+	 */
+	synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		notifyAll();
+		try {
+			closeReadChannel();
+			writeChannel.force(false);
+			writeChannel.close();
+		} catch (IOException e) {
+			throw new RuntimeException("fail to close spool.", e);
+		}
+	}
+
+	private void closeReadChannel() throws IOException {
+		if (readChannel != null) {
+			readChannel.close();
+			readChannel = null;
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("unexpected end of spool segment.");
+			}
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package com.yonyou.cloud.track;
+
+/**
+ * 可以直接接收已编码事件的消费者，供 {@link FanOutConsumer} 只编码一次后分发
+ */
+interface EncodedSink extends Track.Consumer {
+
+	/**
+	 * 写入一条已经编码好的事件
+	 *
+	 * @param line
+	 *            事件的 JSON，以换行结尾。多个消费者共用同一个数组，不能修改
+	 */
+	void sendEncoded(byte[] line, int offset, int length);
+}
@@ -0,0 +1,119 @@
+package com.yonyou.cloud.track;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+/**
+ * 事件属性与公共属性合并后的只读视图
+ *
+ * 不复制公共属性，序列化时先写事件属性，再拼接未被覆盖的预编码公共属性
+ */
+@JsonSerialize(using = EventProperties.Serializer.class)
+final class EventProperties extends AbstractMap<String, Object> {
+
+	private final Map<String, Object> properties;
+	private final SuperPropertiesSnapshot superProperties;
+
+	EventProperties(Map<String, Object> properties, SuperPropertiesSnapshot superProperties) {
+		this.properties = properties == null ? Collections.<String, Object> emptyMap() : properties;
+		this.superProperties = superProperties;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return properties.containsKey(key) || superProperties.values().containsKey(key);
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (properties.containsKey(key)) {
+			return properties.get(key);
+		}
+		return superProperties.values().get(key);
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new Iterator<Map.Entry<String, Object>>() {
+					private final Iterator<Map.Entry<String, Object>> own = properties.entrySet().iterator();
+					private final Iterator<Map.Entry<String, Object>> inherited = superProperties.values().entrySet()
+							.iterator();
+					private Map.Entry<String, Object> next = advance();
+
+					private Map.Entry<String, Object> advance() {
+						if (own.hasNext()) {
+							return own.next();
+						}
+						while (inherited.hasNext()) {
+							Map.Entry<String, Object> entry = inherited.next();
+							if (!properties.containsKey(entry.getKey())) {
+								return entry;
+							}
+						}
+						return null;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return next != null;
+					}
+
+					@Override
+					public Map.Entry<String, Object> next() {
+						if (next == null) {
+							throw new NoSuchElementException();
+						}
+						Map.Entry<String, Object> current = next;
+						next = advance();
+						return current;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				int size = properties.size();
+				for (int i = 0; i < superProperties.size(); i++) {
+					if (!properties.containsKey(superProperties.key(i))) {
+						size++;
+					}
+				}
+				return size;
+			}
+		};
+	}
+
+	static class Serializer extends JsonSerializer<EventProperties> {
+
+		@Override
+		public void serialize(EventProperties value, JsonGenerator gen, SerializerProvider provider)
+				throws IOException {
+			gen.writeStartObject();
+			for (Map.Entry<String, Object> entry : value.properties.entrySet()) {
+				gen.writeFieldName(entry.getKey());
+				provider.defaultSerializeValue(entry.getValue(), gen);
+			}
+			value.superProperties.writeFields(gen, value.properties);
+			gen.writeEndObject();
+		}
+	}
+}
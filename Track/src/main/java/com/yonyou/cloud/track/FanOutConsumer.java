@@ -0,0 +1,223 @@
+package com.yonyou.cloud.track;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yonyou.cloud.track.util.ByteArrayBuffer;
+
+/**
+ * 把每个事件同时写到多个消费者，例如本地日志文件和 HTTP 接收服务
+ *
+ * 事件在业务线程上只编码一次，编码结果作为只读的字节数组放入每个消费者自己的队列，由各自的线程写入。
+ * 某个消费者变慢时只有它的队列会满，满时丢弃该消费者的新事件，不影响其他消费者和业务线程
+ *
+ * <pre>
+ * new Track(new FanOutConsumer(new Track.ConcurrentLoggingConsumer(&quot;/data/track.log&quot;),
+ * 		new HttpBatchConsumer(&quot;http://collector/sa&quot;)));
+ * </pre>
+ */
+public class FanOutConsumer implements Track.Consumer {
+	private static final Logger loger = LoggerFactory.getLogger(FanOutConsumer.class);
+
+	private final static int DEFAULT_QUEUE_CAPACITY = 8192;
+	private final static int DRAIN_BATCH_SIZE = 256;
+	private final static long CLOSE_TIMEOUT_MILLIS = 10000;
+	private final static AtomicInteger SINK_SEQUENCE = new AtomicInteger();
+
+	/**
+	 * 一个消费者及其队列和写线程
+	 */
+	private final static class Sink implements Runnable {
+		final EncodedSink consumer;
+		final BlockingQueue<byte[]> queue;
+		final Thread thread;
+		final LongAdder droppedCount = new LongAdder();
+		// 放入队列和已经写入消费者的事件数，用于 flush 时等待队列清空
+		final LongAdder enqueued = new LongAdder();
+		long written;
+		volatile boolean running = true;
+
+		Sink(EncodedSink consumer, int queueCapacity) {
+			this.consumer = consumer;
+			this.queue = new ArrayBlockingQueue<byte[]>(queueCapacity);
+			this.thread = new Thread(this, "track-fanout-" + SINK_SEQUENCE.incrementAndGet());
+			this.thread.setDaemon(true);
+		}
+
+		void offer(byte[] line) {
+			if (queue.offer(line)) {
+				enqueued.increment();
+			} else {
+				droppedCount.increment();
+			}
+		}
+
+		@Override
+		public void run() {
+			List<byte[]> lines = new ArrayList<byte[]>(DRAIN_BATCH_SIZE);
+			while (running || !queue.isEmpty()) {
+				try {
+					byte[] first = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					lines.add(first);
+					queue.drainTo(lines, DRAIN_BATCH_SIZE - 1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				for (byte[] line : lines) {
+					try {
+						consumer.sendEncoded(line, 0, line.length);
+					} catch (RuntimeException e) {
+						loger.error("fail to send event to fan-out sink.", e);
+					}
+				}
+				synchronized (this) {
+					written += lines.size();
+					notifyAll();
+				}
+				lines.clear();
+			}
+		}
+
+		/**
+		 * 等待调用时已经入队的事件全部写入消费者
+		 *
+		 * @param timeoutMillis
+		 *            最长等待时间，0 表示一直等待
+		 */
+		synchronized boolean awaitWritten(long timeoutMillis) {
+			final long target = enqueued.sum();
+			final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			while (written < target && thread.isAlive()) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (timeoutMillis > 0 && remaining <= 0) {
+					return false;
+				}
+				try {
+					wait(timeoutMillis > 0 ? Math.min(remaining, 100) : 100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final int queueCapacity;
+	// 增加消费者时整体替换，发送时不加锁
+	private volatile Sink[] sinks = new Sink[0];
+	private final JsonEventEncoder encoder = new JsonEventEncoder();
+	private final ThreadLocal<ByteArrayBuffer> buffers = new ThreadLocal<ByteArrayBuffer>() {
+		@Override
+		protected ByteArrayBuffer initialValue() {
+			return new ByteArrayBuffer(1024);
+		}
+	};
+
+	public FanOutConsumer(Track.Consumer first, Track.Consumer second) {
+		this(DEFAULT_QUEUE_CAPACITY, first, second);
+	}
+
+	/**
+	 * @param queueCapacity
+	 *            每个消费者队列最多缓存的事件数，满时丢弃该消费者的新事件
+	 * @param first
+	 *            文件日志消费者或 {@link HttpBatchConsumer}，更多的消费者通过 addConsumer 增加
+	 */
+	public FanOutConsumer(int queueCapacity, Track.Consumer first, Track.Consumer second) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("queue capacity must be positive.");
+		}
+		this.queueCapacity = queueCapacity;
+		addConsumer(first);
+		addConsumer(second);
+	}
+
+	/**
+	 * 增加一个消费者，之后发送的事件才会写入该消费者
+	 */
+	public synchronized void addConsumer(Track.Consumer consumer) {
+		if (!(consumer instanceof EncodedSink)) {
+			throw new IllegalArgumentException(
+					"consumer " + consumer.getClass().getName() + " does not accept encoded events.");
+		}
+		Sink sink = new Sink((EncodedSink) consumer, queueCapacity);
+		Sink[] current = this.sinks;
+		Sink[] next = Arrays.copyOf(current, current.length + 1);
+		next[current.length] = sink;
+		sink.thread.start();
+		this.sinks = next;
+	}
+
+	@Override
+	public void send(Map<String, Object> message) {
+		final ByteArrayBuffer buffer = buffers.get();
+		buffer.reset();
+		encoder.encode(message, buffer);
+		// 所有消费者共用这一份副本，之后不再修改
+		final byte[] line = buffer.toByteArray();
+		for (Sink sink : sinks) {
+			sink.offer(line);
+		}
+	}
+
+	/**
+	 * 等待各队列中已有的事件写入消费者，再刷新每个消费者
+	 */
+	@Override
+	public void flush() {
+		for (Sink sink : sinks) {
+			sink.awaitWritten(0);
+			sink.consumer.flush();
+		}
+	}
+
+	@Override
+	public void close() {
+		final Sink[] sinks = this.sinks;
+		for (Sink sink : sinks) {
+			if (!sink.awaitWritten(CLOSE_TIMEOUT_MILLIS)) {
+				loger.warn("fan-out sink " + sink.thread.getName() + " did not drain in time, " + sink.queue.size()
+						+ " events are discarded.");
+				sink.queue.clear();
+			}
+			sink.running = false;
+		}
+		for (Sink sink : sinks) {
+			try {
+				sink.thread.join(CLOSE_TIMEOUT_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			sink.consumer.close();
+		}
+	}
+
+	/**
+	 * @return 第 index 个消费者因队列满而丢弃的事件数
+	 */
+	public long getDroppedCount(int index) {
+		return sinks[index].droppedCount.sum();
+	}
+
+	/**
+	 * @return 第 index 个消费者队列中等待写入的事件数
+	 */
+	public int getQueueSize(int index) {
+		return sinks[index].queue.size();
+	}
+}
@@ -0,0 +1,184 @@
+package com.yonyou.cloud.track;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+/**
+ * 以平行数组保存的只读事件属性
+ *
+ * 数值和布尔类型不装箱，序列化时直接写入 JsonGenerator；作为 Map 访问时才按需装箱。
+ * 未被事件属性覆盖的公共属性在序列化时以预编码的形式拼接在后面
+ */
+@JsonSerialize(using = FlatProperties.Serializer.class)
+final class FlatProperties extends AbstractMap<String, Object> {
+
+	final static byte LONG = 0;
+	final static byte DOUBLE = 1;
+	final static byte BOOLEAN = 2;
+	final static byte OBJECT = 3;
+
+	private final String[] keys;
+	private final byte[] types;
+	private final long[] primitives;
+	private final Object[] objects;
+	private final int size;
+	// 需要拼接的公共属性，为 null 表示没有
+	private final SuperPropertiesSnapshot superProperties;
+	// 没有被覆盖的公共属性的下标
+	private final int[] inherited;
+
+	FlatProperties(String[] keys, byte[] types, long[] primitives, Object[] objects, int size,
+			SuperPropertiesSnapshot superProperties) {
+		this.keys = keys;
+		this.types = types;
+		this.primitives = primitives;
+		this.objects = objects;
+		this.size = size;
+		this.superProperties = superProperties;
+
+		if (superProperties == null) {
+			this.inherited = new int[0];
+		} else {
+			int[] indexes = new int[superProperties.size()];
+			int n = 0;
+			for (int i = 0; i < indexes.length; i++) {
+				if (indexOf(superProperties.key(i)) < 0) {
+					indexes[n++] = i;
+				}
+			}
+			this.inherited = n == indexes.length ? indexes : Arrays.copyOf(indexes, n);
+		}
+	}
+
+	@Override
+	public int size() {
+		return size + inherited.length;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0 || (superProperties != null && superProperties.values().containsKey(key));
+	}
+
+	@Override
+	public Object get(Object key) {
+		int index = indexOf(key);
+		if (index >= 0) {
+			return value(index);
+		}
+		return superProperties == null ? null : superProperties.values().get(key);
+	}
+
+	private int indexOf(Object key) {
+		for (int i = 0; i < size; i++) {
+			if (keys[i].equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private Object value(int index) {
+		return value(types[index], primitives[index], objects[index]);
+	}
+
+	/**
+	 * 把平行数组中的一个属性还原为对象，数值和布尔类型在这里装箱
+	 */
+	static Object value(byte type, long primitive, Object object) {
+		switch (type) {
+		case LONG:
+			return primitive;
+		case DOUBLE:
+			return Double.longBitsToDouble(primitive);
+		case BOOLEAN:
+			return primitive != 0;
+		default:
+			return object;
+		}
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new Iterator<Map.Entry<String, Object>>() {
+					private int index = 0;
+
+					@Override
+					public boolean hasNext() {
+						return index < size + inherited.length;
+					}
+
+					@Override
+					public Map.Entry<String, Object> next() {
+						if (index >= size + inherited.length) {
+							throw new NoSuchElementException();
+						}
+						Map.Entry<String, Object> entry;
+						if (index < size) {
+							entry = new SimpleImmutableEntry<String, Object>(keys[index], value(index));
+						} else {
+							String key = superProperties.key(inherited[index - size]);
+							entry = new SimpleImmutableEntry<String, Object>(key, superProperties.values().get(key));
+						}
+						index++;
+						return entry;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size + inherited.length;
+			}
+		};
+	}
+
+	static class Serializer extends JsonSerializer<FlatProperties> {
+
+		@Override
+		public void serialize(FlatProperties value, JsonGenerator gen, SerializerProvider provider)
+				throws IOException {
+			gen.writeStartObject();
+			for (int i = 0; i < value.size; i++) {
+				gen.writeFieldName(value.keys[i]);
+				switch (value.types[i]) {
+				case LONG:
+					gen.writeNumber(value.primitives[i]);
+					break;
+				case DOUBLE:
+					gen.writeNumber(Double.longBitsToDouble(value.primitives[i]));
+					break;
+				case BOOLEAN:
+					gen.writeBoolean(value.primitives[i] != 0);
+					break;
+				default:
+					provider.defaultSerializeValue(value.objects[i], gen);
+					break;
+				}
+			}
+			for (int index : value.inherited) {
+				value.superProperties.writeField(gen, index);
+			}
+			gen.writeEndObject();
+		}
+	}
+}
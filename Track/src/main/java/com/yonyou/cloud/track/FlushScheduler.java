@@ -0,0 +1,94 @@
+package com.yonyou.cloud.track;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 进程内所有消费者共用的后台刷新线程
+ *
+ * 只有一个守护线程，按各消费者注册的周期检查缓冲区，保证空闲时数据停留的时间有上限。
+ * 需要独立刷新线程的消费者（例如分片写入不同磁盘时）可以通过 {@link #newExecutor(String)} 创建自己的线程，
+ * 传入 null 表示使用共用的线程。刷新任务抛出的异常只记录日志，不会中断后续的检查
+ */
+final class FlushScheduler {
+	private static final Logger loger = LoggerFactory.getLogger(FlushScheduler.class);
+
+	private final static long MIN_PERIOD_MILLIS = 5;
+
+	private static ScheduledThreadPoolExecutor executor;
+
+	private FlushScheduler() {
+	}
+
+	/**
+	 * 注册一个周期执行的刷新任务
+	 *
+	 * @return 用于在消费者关闭时取消任务
+	 */
+	static ScheduledFuture<?> schedule(final Runnable task, long periodMillis) {
+		return schedule(null, task, periodMillis);
+	}
+
+	static ScheduledFuture<?> schedule(ScheduledExecutorService executor, final Runnable task, long periodMillis) {
+		final long period = Math.max(periodMillis, MIN_PERIOD_MILLIS);
+		return executorOrShared(executor).scheduleWithFixedDelay(guard(task), period, period,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 在后台刷新线程上执行一次刷新，用于持有锁、不能直接刷新的调用方
+	 */
+	static void execute(final Runnable task) {
+		execute(null, task);
+	}
+
+	static void execute(ScheduledExecutorService executor, final Runnable task) {
+		executorOrShared(executor).execute(guard(task));
+	}
+
+	/**
+	 * 创建一个独立的刷新线程，由调用方在不再使用时关闭
+	 */
+	static ScheduledThreadPoolExecutor newExecutor(final String threadName) {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, threadName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		return executor;
+	}
+
+	private static ScheduledExecutorService executorOrShared(ScheduledExecutorService executor) {
+		return executor != null ? executor : executor();
+	}
+
+	private static Runnable guard(final Runnable task) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch (Throwable e) {
+					loger.error("fail to flush in background.", e);
+				}
+			}
+		};
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor executor() {
+		if (executor == null) {
+			executor = newExecutor("track-flusher");
+		}
+		return executor;
+	}
+}
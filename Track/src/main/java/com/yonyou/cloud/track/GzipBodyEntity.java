@@ -0,0 +1,92 @@
+package com.yonyou.cloud.track;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * 以 gzip 压缩的 JSON 作为请求体，Content-Encoding 为 gzip
+ *
+ * 写出请求时直接从 JSON 字节压缩到连接的输出流，不生成压缩后的副本，也不做 Base64 和表单编码。
+ * 长度未知，使用分块传输；数据保存在内存中，重试时可以重复写出
+ */
+class GzipBodyEntity extends AbstractHttpEntity {
+
+	private final static int OUTPUT_CHUNK_SIZE = 8 * 1024;
+	// gzip 头：魔数、deflate 算法、无标志位、无修改时间、无额外标志、未知操作系统
+	private final static byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private final byte[] data;
+	private final int length;
+	private final int level;
+
+	GzipBodyEntity(final byte[] data, final int length, final int level) {
+		this.data = data;
+		this.length = length;
+		this.level = level;
+		setContentType("application/json; charset=UTF-8");
+		setContentEncoding("gzip");
+		setChunked(true);
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	/**
+	 * 只用于调试，返回未压缩的内容
+	 */
+	@Override
+	public InputStream getContent() {
+		return new ByteArrayInputStream(data, 0, length);
+	}
+
+	@Override
+	public void writeTo(final OutputStream out) throws IOException {
+		final Deflater deflater = DeflaterPool.acquire(level);
+		try {
+			final byte[] chunk = new byte[OUTPUT_CHUNK_SIZE];
+			out.write(GZIP_HEADER);
+
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			while (!deflater.finished()) {
+				int n = deflater.deflate(chunk, 0, chunk.length);
+				if (n > 0) {
+					out.write(chunk, 0, n);
+				}
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, length);
+			writeIntLE(out, (int) crc.getValue());
+			writeIntLE(out, length);
+			out.flush();
+		} finally {
+			DeflaterPool.release(level, deflater);
+		}
+	}
+
+	private static void writeIntLE(OutputStream out, int value) throws IOException {
+		out.write(value & 0xff);
+		out.write((value >>> 8) & 0xff);
+		out.write((value >>> 16) & 0xff);
+		out.write((value >>> 24) & 0xff);
+	}
+}
@@ -0,0 +1,300 @@
+package com.yonyou.cloud.track;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 按 {@link RetentionPolicy} 整理同一前缀下已滚动的日志文件
+ *
+ * 所有消费者共用一个低优先级的守护线程，压缩和删除都不经过业务线程和刷新线程。
+ * 当前周期中正在写入的文件（每个写入者序号最大的文件）、最近仍有写入的文件都不会被处理；压缩先写到 .gz.tmp，完成后原子改名再删除原文件，
+ * 多个进程共用同一前缀时以创建 .gz.tmp 成功的一方为准
+ */
+final class Housekeeper implements Runnable {
+	private static final Logger loger = LoggerFactory.getLogger(Housekeeper.class);
+
+	private final static int COPY_BUFFER_SIZE = 64 * 1024;
+	private final static String GZIP_SUFFIX = ".gz";
+	private final static String TEMP_SUFFIX = ".gz.tmp";
+
+	private static ScheduledThreadPoolExecutor executor;
+
+	private final File directory;
+	private final String baseName;
+	private final boolean compress;
+	private final int compressionLevel;
+	private final long maxAgeMillis;
+	private final long maxTotalBytes;
+	private final long maxBytesPerSecond;
+	private final long releaseMillis;
+	private final ScheduledFuture<?> future;
+	private volatile RollingPolicy rollingPolicy;
+	private volatile boolean closed = false;
+
+	Housekeeper(String filenamePrefix, RollingPolicy rollingPolicy, RetentionPolicy retentionPolicy) {
+		File prefix = new File(filenamePrefix).getAbsoluteFile();
+		this.directory = prefix.getParentFile();
+		this.baseName = prefix.getName() + ".";
+		this.rollingPolicy = rollingPolicy;
+		this.compress = retentionPolicy.isCompress();
+		this.compressionLevel = retentionPolicy.getCompressionLevel();
+		this.maxAgeMillis = retentionPolicy.getMaxAgeMillis();
+		this.maxTotalBytes = retentionPolicy.getMaxTotalBytes();
+		this.maxBytesPerSecond = retentionPolicy.getMaxBytesPerSecond();
+		this.releaseMillis = retentionPolicy.getReleaseMillis();
+		long interval = retentionPolicy.getIntervalMillis();
+		this.future = executor().scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	void setRollingPolicy(RollingPolicy rollingPolicy) {
+		this.rollingPolicy = rollingPolicy;
+	}
+
+	/**
+	 * 停止整理，正在进行的压缩会尽快放弃并删除临时文件
+	 */
+	void close() {
+		closed = true;
+		future.cancel(false);
+	}
+
+	@Override
+	public void run() {
+		try {
+			housekeep(System.currentTimeMillis());
+		} catch (Throwable e) {
+			loger.error("fail to housekeep log files.", e);
+		}
+	}
+
+	void housekeep(long now) throws IOException {
+		List<File> files = listLogFiles();
+		String activePrefix = baseName + rollingPolicy.periodSuffix(now);
+		Set<String> activeNames = activeNames(files, activePrefix);
+		if (compress) {
+			for (int i = 0; i < files.size() && !closed; i++) {
+				File file = files.get(i);
+				String name = file.getName();
+				if (name.endsWith(TEMP_SUFFIX)) {
+					// 进程在压缩中途退出遗留的临时文件
+					if (now - file.lastModified() > releaseMillis * 2) {
+						Files.deleteIfExists(file.toPath());
+					}
+				} else if (!name.endsWith(GZIP_SUFFIX) && isReleased(file, activeNames, now)
+						&& !(maxAgeMillis > 0 && now - file.lastModified() > maxAgeMillis)) {
+					// 已过期的文件随后会被直接删除，不再压缩
+					File compressed = compress(file);
+					if (compressed != null) {
+						files.set(i, compressed);
+					}
+				}
+			}
+		}
+		if ((maxAgeMillis > 0 || maxTotalBytes > 0) && !closed) {
+			files = listLogFiles();
+			retain(files, activeNames(files, activePrefix), now);
+		}
+	}
+
+	/**
+	 * 按最后修改时间从旧到新删除，直到满足保留时长和总大小
+	 */
+	private void retain(List<File> files, Set<String> activeNames, long now) throws IOException {
+		long totalBytes = 0;
+		for (File file : files) {
+			totalBytes += file.length();
+		}
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				return Long.compare(o1.lastModified(), o2.lastModified());
+			}
+		});
+		for (File file : files) {
+			boolean expired = maxAgeMillis > 0 && now - file.lastModified() > maxAgeMillis;
+			boolean overQuota = maxTotalBytes > 0 && totalBytes > maxTotalBytes;
+			if (!expired && !overQuota) {
+				break;
+			}
+			if (file.getName().endsWith(TEMP_SUFFIX) || !isReleased(file, activeNames, now)) {
+				continue;
+			}
+			long length = file.length();
+			if (Files.deleteIfExists(file.toPath())) {
+				totalBytes -= length;
+				loger.info("delete log file {}, expired: {}, total bytes: {}.", file, expired, totalBytes);
+			}
+		}
+	}
+
+	private boolean isReleased(File file, Set<String> activeNames, long now) {
+		return !activeNames.contains(file.getName()) && now - file.lastModified() >= releaseMillis;
+	}
+
+	/**
+	 * 当前周期中按大小滚动的文件名为 周期.序号[.分片名]，同一分片名下序号最大的文件正在写入，
+	 * 序号更小的文件已经写满，可以压缩和计入总大小
+	 *
+	 * @return 正在写入的文件名
+	 */
+	private static Set<String> activeNames(List<File> files, String activePrefix) {
+		Map<String, String> active = new HashMap<String, String>();
+		Map<String, Integer> indexes = new HashMap<String, Integer>();
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith(activePrefix) || name.endsWith(GZIP_SUFFIX) || name.endsWith(TEMP_SUFFIX)) {
+				continue;
+			}
+			String rest = name.substring(activePrefix.length());
+			if (rest.length() > 0 && rest.charAt(0) != '.') {
+				// 前缀相同但不属于当前周期的文件
+				continue;
+			}
+			int index = 0;
+			int end = 1;
+			while (end < rest.length() && Character.isDigit(rest.charAt(end))) {
+				end++;
+			}
+			String segment = rest;
+			if (end > 1 && end <= 10 && (end == rest.length() || rest.charAt(end) == '.')) {
+				index = Integer.parseInt(rest.substring(1, end));
+				segment = rest.substring(end);
+			}
+			Integer current = indexes.get(segment);
+			if (current == null || index > current) {
+				indexes.put(segment, index);
+				active.put(segment, name);
+			}
+		}
+		return new HashSet<String>(active.values());
+	}
+
+	/**
+	 * @return 压缩后的文件，文件在压缩期间被修改、或者其他进程正在压缩时返回 null
+	 */
+	private File compress(File source) throws IOException {
+		File temp = new File(source.getPath() + TEMP_SUFFIX);
+		File target = new File(source.getPath() + GZIP_SUFFIX);
+		long lastModified = source.lastModified();
+		long length = source.length();
+
+		OutputStream os;
+		try {
+			os = Files.newOutputStream(temp.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		} catch (FileAlreadyExistsException e) {
+			return null;
+		}
+		boolean completed = false;
+		try {
+			try (InputStream is = new FileInputStream(source);
+					GZIPOutputStream gzip = new LeveledGZIPOutputStream(os, compressionLevel)) {
+				copy(is, gzip);
+			}
+			if (closed || source.lastModified() != lastModified || source.length() != length) {
+				return null;
+			}
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			completed = true;
+		} finally {
+			os.close();
+			if (!completed) {
+				Files.deleteIfExists(temp.toPath());
+			}
+		}
+		target.setLastModified(lastModified);
+		Files.deleteIfExists(source.toPath());
+		loger.info("compress log file {}, {} -> {} bytes.", source, length, target.length());
+		return target;
+	}
+
+	/**
+	 * 按 maxBytesPerSecond 限速复制
+	 */
+	private void copy(InputStream is, OutputStream os) throws IOException {
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		long start = System.nanoTime();
+		long copied = 0;
+		int n;
+		while (!closed && (n = is.read(buffer)) > 0) {
+			os.write(buffer, 0, n);
+			copied += n;
+			if (maxBytesPerSecond > 0) {
+				long ahead = copied * 1000 / maxBytesPerSecond - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				if (ahead > 0) {
+					try {
+						Thread.sleep(ahead);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("interrupted while compressing log file.");
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return 同一前缀下的日志文件，包括已压缩的文件和压缩中的临时文件，不包括溢出文件等
+	 */
+	private List<File> listLogFiles() {
+		List<File> result = new ArrayList<File>();
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return result;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			// 滚动的文件名在前缀之后都以日期开头
+			if (name.length() > baseName.length() && name.startsWith(baseName)
+					&& Character.isDigit(name.charAt(baseName.length())) && file.isFile()) {
+				result.add(file);
+			}
+		}
+		return result;
+	}
+
+	private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+		LeveledGZIPOutputStream(OutputStream os, int level) throws IOException {
+			super(os, COPY_BUFFER_SIZE);
+			def.setLevel(level);
+		}
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor executor() {
+		if (executor == null) {
+			executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "track-housekeeper");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+			executor.setRemoveOnCancelPolicy(true);
+		}
+		return executor;
+	}
+}
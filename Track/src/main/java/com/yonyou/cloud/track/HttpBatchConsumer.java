@@ -0,0 +1,548 @@
+package com.yonyou.cloud.track;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yonyou.cloud.track.util.ByteArrayBuffer;
+
+/**
+ * 批量发送到数据接收服务的消费者
+ *
+ * 事件编码后追加到当前批次，批次的事件数或字节数达到上限、或者停留超过 maxStaleMillis 时切出，
+ * 交给发送线程池并发发送。所有发送线程共用一个连接池，连接保持长连接。
+ * 发送失败时按照带随机抖动的指数退避重试，超过重试次数后丢弃该批次。
+ *
+ * 请求体仍然是 gzip 和 data_list 两个表单字段，与现有的接收服务兼容。
+ * 指定预写队列目录时，批次先落盘再由发送线程读出发送，接收服务长时间不可用只占用磁盘空间
+ */
+public class HttpBatchConsumer implements Track.Consumer, EncodedSink {
+	private static final Logger loger = LoggerFactory.getLogger(HttpBatchConsumer.class);
+
+	private final static int DEFAULT_MAX_BATCH_COUNT = 50;
+	private final static int DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+	private final static int DEFAULT_MAX_IN_FLIGHT = 4;
+	private final static int DEFAULT_MAX_RETRIES = 5;
+	private final static long DEFAULT_MAX_STALE_MILLIS = 1000;
+	private final static int QUEUED_BATCHES_PER_SENDER = 16;
+	private final static int CONNECT_TIMEOUT_MILLIS = 5000;
+	private final static int SOCKET_TIMEOUT_MILLIS = 10000;
+	private final static long BACKOFF_BASE_MILLIS = 100;
+	private final static long BACKOFF_MAX_MILLIS = 10000;
+	private final static long CLOSE_TIMEOUT_SECONDS = 10;
+	private final static long DEFAULT_SPOOL_SEGMENT_SIZE = 16 * 1024 * 1024;
+	private final static long SPOOL_POLL_MILLIS = 500;
+	private final static int DEFAULT_COMPRESSION_LEVEL = 6;
+
+	/**
+	 * 请求体的格式
+	 */
+	public enum PayloadMode {
+		/** gzip 和 data_list 表单，data_list 为压缩后再 Base64 编码的 JSON，兼容现有的接收服务 */
+		FORM,
+		/** 请求体直接是 gzip 压缩的 JSON，Content-Encoding 为 gzip，体积更小，复制更少 */
+		GZIP_BODY
+	}
+
+	/**
+	 * 一个已经切出的批次，data 中是完整的 JSON 数组
+	 */
+	private static class Batch {
+		private final byte[] data;
+		private final int count;
+
+		Batch(byte[] data, int count) {
+			this.data = data;
+			this.count = count;
+		}
+	}
+
+	private final Track.HttpConsumer httpConsumer;
+	private final PoolingClientConnectionManager connectionManager;
+	private final JsonEventEncoder encoder;
+	private final int maxBatchCount;
+	private final int maxBatchBytes;
+	private final int maxRetries;
+	private final long maxStaleNanos;
+	private final ThreadPoolExecutor executor;
+	private final ScheduledFuture<?> flushTask;
+	// 为 null 时批次直接交给发送线程池，不落盘
+	private final DiskSpool spool;
+	private final Semaphore inFlightPermits;
+	private final Thread spoolReader;
+	private volatile boolean running = true;
+
+	private final ByteArrayBuffer batchBuffer;
+	private int batchCount;
+	// 当前批次第一条记录的写入时间，批次为空时为 0
+	private long firstWriteNanos;
+
+	private final LongAdder sentCount = new LongAdder();
+	private final LongAdder failedCount = new LongAdder();
+	private final LongAdder droppedCount = new LongAdder();
+	private final LongAdder retryCount = new LongAdder();
+
+	public HttpBatchConsumer(String serverUrl) {
+		this(serverUrl, DEFAULT_MAX_BATCH_COUNT, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_RETRIES,
+				DEFAULT_MAX_STALE_MILLIS);
+	}
+
+	/**
+	 * @param serverUrl
+	 *            数据接收地址
+	 * @param maxBatchCount
+	 *            每个批次最多的事件数
+	 * @param maxBatchBytes
+	 *            每个批次编码后最多的字节数，单个事件超过该大小时单独成批
+	 * @param maxInFlight
+	 *            同时发送的批次数，也是连接池的大小
+	 * @param maxRetries
+	 *            每个批次失败后最多重试的次数
+	 * @param maxStaleMillis
+	 *            未满的批次最长停留时间，超过后由后台刷新线程切出，0 表示不限制
+	 */
+	public HttpBatchConsumer(String serverUrl, int maxBatchCount, int maxBatchBytes, int maxInFlight, int maxRetries,
+			long maxStaleMillis) {
+		this(serverUrl, null, maxBatchCount, maxBatchBytes, maxInFlight, maxRetries, maxStaleMillis);
+	}
+
+	/**
+	 * @param httpHeaders
+	 *            每个请求附带的 HTTP 头
+	 */
+	public HttpBatchConsumer(String serverUrl, Map<String, String> httpHeaders, int maxBatchCount, int maxBatchBytes,
+			int maxInFlight, int maxRetries, long maxStaleMillis) {
+		this(serverUrl, httpHeaders, maxBatchCount, maxBatchBytes, maxInFlight, maxRetries, maxStaleMillis, null);
+	}
+
+	/**
+	 * 先写本地预写队列再发送，接收服务不可用或者进程重启时数据保留在磁盘上，恢复后从 checkpoint 继续发送。
+	 * 可以重试的错误会一直重试，同一批次在重启后可能被重复发送
+	 *
+	 * @param spoolDirectory
+	 *            预写队列目录，每个消费者独占一个目录
+	 * @param maxSpoolBytes
+	 *            预写队列的大小上限
+	 * @param spoolOverflowPolicy
+	 *            超过大小上限时的处理方式，DROP_OLDEST 淘汰最早的分段，DROP_NEWEST 丢弃新的批次
+	 */
+	public HttpBatchConsumer(String serverUrl, Map<String, String> httpHeaders, int maxBatchCount, int maxBatchBytes,
+			int maxInFlight, long maxStaleMillis, String spoolDirectory, long maxSpoolBytes,
+			Track.OverflowPolicy spoolOverflowPolicy) throws IOException {
+		this(serverUrl, httpHeaders, maxBatchCount, maxBatchBytes, maxInFlight, Integer.MAX_VALUE, maxStaleMillis,
+				new DiskSpool(spoolDirectory, maxSpoolBytes, DEFAULT_SPOOL_SEGMENT_SIZE, spoolOverflowPolicy));
+	}
+
+	private HttpBatchConsumer(String serverUrl, Map<String, String> httpHeaders, int maxBatchCount, int maxBatchBytes,
+			int maxInFlight, int maxRetries, long maxStaleMillis, DiskSpool spool) {
+		if (maxBatchCount < 1 || maxBatchBytes < 1 || maxInFlight < 1 || maxRetries < 0) {
+			throw new IllegalArgumentException("invalid batch or concurrency settings.");
+		}
+		this.connectionManager = new PoolingClientConnectionManager();
+		this.connectionManager.setMaxTotal(maxInFlight);
+		this.connectionManager.setDefaultMaxPerRoute(maxInFlight);
+		this.httpConsumer = new Track.HttpConsumer(createHttpClient(connectionManager), serverUrl, httpHeaders);
+		this.encoder = new JsonEventEncoder();
+		this.maxBatchCount = maxBatchCount;
+		this.maxBatchBytes = maxBatchBytes;
+		this.maxRetries = maxRetries;
+		this.maxStaleNanos = TimeUnit.MILLISECONDS.toNanos(maxStaleMillis);
+		this.batchBuffer = new ByteArrayBuffer(Math.min(maxBatchBytes, DEFAULT_MAX_BATCH_BYTES) + 1024);
+
+		// 排队的批次最多为并发数的 QUEUED_BATCHES_PER_SENDER 倍，再多说明接收服务跟不上，新批次直接丢弃
+		final AtomicInteger threadSequence = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(maxInFlight, maxInFlight, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(maxInFlight * QUEUED_BATCHES_PER_SENDER), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "track-http-sender-" + threadSequence.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		this.spool = spool;
+		if (spool != null) {
+			this.inFlightPermits = new Semaphore(maxInFlight);
+			this.spoolReader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					readSpool();
+				}
+			}, "track-http-spool-reader");
+			this.spoolReader.setDaemon(true);
+			this.spoolReader.start();
+		} else {
+			this.inFlightPermits = null;
+			this.spoolReader = null;
+		}
+
+		if (maxStaleMillis > 0) {
+			this.flushTask = FlushScheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flushStale();
+				}
+			}, maxStaleMillis / 4);
+		} else {
+			this.flushTask = null;
+		}
+	}
+
+	private static HttpClient createHttpClient(PoolingClientConnectionManager connectionManager) {
+		DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager);
+		HttpParams params = httpClient.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT_MILLIS);
+		HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MILLIS);
+		return httpClient;
+	}
+
+	public void setPayloadMode(PayloadMode payloadMode) {
+		setPayloadMode(payloadMode, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * 设置请求体的格式，默认为 FORM
+	 *
+	 * @param compressionLevel
+	 *            GZIP_BODY 模式的压缩级别，0 到 9，-1 表示默认级别
+	 */
+	public void setPayloadMode(PayloadMode payloadMode, int compressionLevel) {
+		if (payloadMode == PayloadMode.GZIP_BODY) {
+			httpConsumer.setGzipBody(compressionLevel == Deflater.DEFAULT_COMPRESSION ? DEFAULT_COMPRESSION_LEVEL
+					: compressionLevel);
+		} else {
+			httpConsumer.setFormBody();
+		}
+	}
+
+	/**
+	 * @return 发送成功的事件数
+	 */
+	public long getSentCount() {
+		return sentCount.sum();
+	}
+
+	/**
+	 * @return 重试次数用完或者被接收服务拒绝的事件数
+	 */
+	public long getFailedCount() {
+		return failedCount.sum();
+	}
+
+	/**
+	 * @return 发送队列或预写队列已满时丢弃的事件数，包括预写队列淘汰的事件
+	 */
+	public long getDroppedCount() {
+		if (spool != null) {
+			return droppedCount.sum() + spool.getDroppedCount() + spool.getEvictedCount();
+		}
+		return droppedCount.sum();
+	}
+
+	/**
+	 * @return 预写队列占用的磁盘空间，不使用预写队列时为 0
+	 */
+	public long getSpoolBytes() {
+		return spool == null ? 0 : spool.getTotalBytes();
+	}
+
+	public long getRetryCount() {
+		return retryCount.sum();
+	}
+
+	@Override
+	public void send(Map<String, Object> message) {
+		append(message, null, 0, 0);
+	}
+
+	@Override
+	public void sendEncoded(byte[] line, int offset, int length) {
+		// 批次是 JSON 数组，去掉行尾的换行
+		append(null, line, offset, length - 1);
+	}
+
+	/**
+	 * 追加一个事件，message 为 null 时追加已经编码好的 JSON
+	 */
+	private void append(Map<String, Object> message, byte[] data, int offset, int length) {
+		Batch batch = null;
+		synchronized (this) {
+			final int mark = batchBuffer.length();
+			batchBuffer.write(batchCount == 0 ? '[' : ',');
+			if (message != null) {
+				try {
+					encoder.encodeValue(message, batchBuffer);
+				} catch (RuntimeException e) {
+					batchBuffer.setLength(mark);
+					throw e;
+				}
+			} else {
+				batchBuffer.write(data, offset, length);
+			}
+			if (batchCount++ == 0) {
+				firstWriteNanos = System.nanoTime();
+			}
+			if (batchCount >= maxBatchCount || batchBuffer.length() >= maxBatchBytes) {
+				batch = cutBatch();
+			}
+		}
+
+		if (batch != null) {
+			submit(batch);
+		}
+	}
+
+	/**
+	 * 切出当前批次，调用时持有锁
+	 */
+	private Batch cutBatch() {
+		if (batchCount == 0) {
+			return null;
+		}
+		batchBuffer.write(']');
+		Batch batch = new Batch(batchBuffer.toByteArray(), batchCount);
+		batchBuffer.reset();
+		batchCount = 0;
+		firstWriteNanos = 0;
+		return batch;
+	}
+
+	private void submit(final Batch batch) {
+		if (spool != null) {
+			try {
+				spool.append(batch.data, batch.count);
+			} catch (IOException e) {
+				droppedCount.add(batch.count);
+				loger.error("fail to append " + batch.count + " events to spool.", e);
+			}
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					deliver(batch);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			droppedCount.add(batch.count);
+			loger.warn("http sending queue is full, drop " + batch.count + " events.");
+		}
+	}
+
+	/**
+	 * 从预写队列按顺序读出批次，同时发送的批次不超过 maxInFlight
+	 *
+	 * 没有交给发送线程的路径都要归还许可，否则读取线程会永久阻塞
+	 */
+	private void readSpool() {
+		while (running) {
+			try {
+				inFlightPermits.acquire();
+			} catch (InterruptedException e) {
+				return;
+			}
+			final DiskSpool.Entry entry;
+			try {
+				entry = spool.poll(SPOOL_POLL_MILLIS);
+			} catch (InterruptedException e) {
+				inFlightPermits.release();
+				return;
+			} catch (Exception e) {
+				inFlightPermits.release();
+				loger.error("fail to read spool.", e);
+				try {
+					// 读取失败时稍后重试，避免磁盘故障时空转
+					Thread.sleep(SPOOL_POLL_MILLIS);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				continue;
+			}
+			if (entry == null) {
+				inFlightPermits.release();
+				continue;
+			}
+
+			final Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (deliver(entry.data, entry.count)) {
+							spool.ack(entry);
+						}
+					} catch (IOException e) {
+						loger.error("fail to write spool checkpoint.", e);
+					} finally {
+						inFlightPermits.release();
+					}
+				}
+			};
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				if (executor.isShutdown()) {
+					// 正在关闭，未确认的批次留在预写队列中，下次启动后继续发送
+					inFlightPermits.release();
+					return;
+				}
+				// 发送线程池拒绝时在读取线程上发送，保证批次被确认，checkpoint 能够前移
+				task.run();
+			}
+		}
+	}
+
+	private void deliver(Batch batch) {
+		deliver(batch.data, batch.count);
+	}
+
+	/**
+	 * @return 批次是否已经处理完成，发送成功或者确定无法发送都算完成，被中断时返回 false
+	 */
+	private boolean deliver(byte[] data, int count) {
+		for (int attempt = 0;; attempt++) {
+			try {
+				httpConsumer.consume(data, data.length);
+				sentCount.add(count);
+				return true;
+			} catch (IOException e) {
+				if (attempt >= maxRetries) {
+					failedCount.add(count);
+					loger.error("fail to send " + count + " events after " + attempt + " retries.", e);
+					return true;
+				}
+			} catch (Track.HttpConsumer.HttpConsumerException e) {
+				// 4xx 说明数据本身有问题，重试也不会成功
+				if (!isRetryable(e.getHttpStatusCode()) || attempt >= maxRetries) {
+					failedCount.add(count);
+					loger.error("fail to send " + count + " events: " + e.getMessage());
+					return true;
+				}
+			}
+
+			retryCount.increment();
+			try {
+				Thread.sleep(backoffMillis(attempt));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (spool == null) {
+					failedCount.add(count);
+				}
+				return false;
+			}
+		}
+	}
+
+	private static boolean isRetryable(int httpStatusCode) {
+		return httpStatusCode >= 500 || httpStatusCode == 429 || httpStatusCode == 408;
+	}
+
+	/**
+	 * 指数退避加全随机抖动，避免大量客户端在接收服务恢复时同时重试
+	 */
+	static long backoffMillis(int attempt) {
+		long ceiling = BACKOFF_BASE_MILLIS << Math.min(attempt, 16);
+		return ThreadLocalRandom.current().nextLong(Math.min(ceiling, BACKOFF_MAX_MILLIS) + 1);
+	}
+
+	/**
+	 * 由后台刷新线程调用，当前批次停留超过 maxStaleMillis 时切出
+	 */
+	private void flushStale() {
+		Batch batch;
+		synchronized (this) {
+			if (batchCount == 0 || System.nanoTime() - firstWriteNanos < maxStaleNanos) {
+				return;
+			}
+			batch = cutBatch();
+		}
+		submit(batch);
+	}
+
+	/**
+	 * 切出当前批次交给发送线程，不等待发送完成
+	 */
+	@Override
+	public void flush() {
+		Batch batch;
+		synchronized (this) {
+			batch = cutBatch();
+		}
+		if (batch != null) {
+			submit(batch);
+		}
+	}
+
+	/**
+	 * 发送剩余的批次，最多等待 10 秒。使用预写队列时，没有发送完的批次保留在磁盘上，下次启动后继续发送
+	 */
+	@Override
+	public void close() {
+		if (flushTask != null) {
+			flushTask.cancel(false);
+		}
+		flush();
+
+		if (spool != null) {
+			closeSpool();
+			return;
+		}
+
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				loger.warn("http sending did not finish in " + CLOSE_TIMEOUT_SECONDS + " seconds.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		connectionManager.shutdown();
+	}
+
+	private void closeSpool() {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CLOSE_TIMEOUT_SECONDS);
+		try {
+			while (!spool.isDrained() && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!spool.isDrained()) {
+			loger.warn("http sending did not finish in " + CLOSE_TIMEOUT_SECONDS + " seconds, "
+					+ spool.getTotalBytes() + " bytes remain in spool.");
+		}
+
+		running = false;
+		spoolReader.interrupt();
+		// 中断退避中的重试，未确认的批次留在预写队列中
+		executor.shutdownNow();
+		try {
+			spoolReader.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT_SECONDS));
+			executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		spool.close();
+		connectionManager.shutdown();
+	}
+}
@@ -0,0 +1,50 @@
+package com.yonyou.cloud.track;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.yonyou.cloud.track.util.ByteArrayBuffer;
+
+/**
+ * 将事件直接编码为 UTF-8 字节并追加到缓冲区，每条记录以换行结尾
+ *
+ * ObjectWriter 在构造时配置一次，线程安全，可以被多个消费者共享
+ */
+class JsonEventEncoder {
+
+	private final ObjectWriter jsonWriter;
+	private final JsonFactory jsonFactory;
+
+	JsonEventEncoder() {
+		this.jsonWriter = Track.getJsonObjectMapper().setSerializationInclusion(Include.NON_NULL).writer();
+		this.jsonFactory = jsonWriter.getFactory();
+	}
+
+	/**
+	 * 编码一条事件并追加换行，编码失败时缓冲区恢复到调用前的长度
+	 */
+	void encode(Map<String, Object> message, ByteArrayBuffer out) {
+		encodeValue(message, out);
+		out.write('\n');
+	}
+
+	/**
+	 * 只编码事件本身，不追加换行，用于拼接 JSON 数组
+	 */
+	void encodeValue(Map<String, Object> message, ByteArrayBuffer out) {
+		final int mark = out.length();
+		try {
+			JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8);
+			jsonWriter.writeValue(generator, message);
+			generator.close();
+		} catch (IOException e) {
+			out.setLength(mark);
+			throw new RuntimeException("fail to process json", e);
+		}
+	}
+}
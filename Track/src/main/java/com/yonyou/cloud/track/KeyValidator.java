@@ -0,0 +1,78 @@
+package com.yonyou.cloud.track;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 校验事件名和属性名
+ *
+ * 规则与原来的正则一致：以字母、下划线或 $ 开头，由字母、数字、下划线或 $ 组成，长度不超过 100，
+ * 且不能是保留字（不区分大小写）。校验通过的名称会被缓存，重复出现的名称只需一次哈希查找
+ */
+final class KeyValidator {
+
+	private final static int MAX_KEY_LENGTH = 100;
+	private final static int MAX_CACHED_KEYS = 4096;
+
+	private final static String[] RESERVED_KEYS = { "distinct_id", "original_id", "time", "properties", "id",
+			"first_id", "second_id", "users", "events", "event", "user_id", "date", "datetime" };
+
+	private final static Set<String> VALID_KEYS = ConcurrentHashMap.newKeySet();
+
+	private KeyValidator() {
+	}
+
+	static boolean isCached(String key) {
+		return VALID_KEYS.contains(key);
+	}
+
+	static boolean isValid(String key) {
+		if (VALID_KEYS.contains(key)) {
+			return true;
+		}
+		if (!scan(key)) {
+			return false;
+		}
+
+		if (VALID_KEYS.size() >= MAX_CACHED_KEYS) {
+			// 缓存满时随机淘汰一个名称，只会导致该名称下次重新扫描
+			Iterator<String> it = VALID_KEYS.iterator();
+			if (it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+		VALID_KEYS.add(key);
+		return true;
+	}
+
+	private static boolean scan(String key) {
+		final int length = key.length();
+		if (length < 1 || length > MAX_KEY_LENGTH) {
+			return false;
+		}
+
+		char c = key.charAt(0);
+		if (!isLetter(c) && c != '_' && c != '$') {
+			return false;
+		}
+		for (int i = 1; i < length; i++) {
+			c = key.charAt(i);
+			if (!isLetter(c) && !(c >= '0' && c <= '9') && c != '_' && c != '$') {
+				return false;
+			}
+		}
+
+		for (String reserved : RESERVED_KEYS) {
+			if (reserved.length() == length && reserved.equalsIgnoreCase(key)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+}
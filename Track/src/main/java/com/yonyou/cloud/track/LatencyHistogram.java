@@ -0,0 +1,60 @@
+package com.yonyou.cloud.track;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按 2 的幂分桶的耗时直方图，记录只需几次原子加，分位数取所在桶的上界，误差不超过一倍
+ */
+final class LatencyHistogram {
+
+	private final static int BUCKETS = 64;
+
+	// 第 i 个桶记录 [2^(i-1), 2^i) 纳秒，第 0 个桶记录 0
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+		totalNanos.add(nanos);
+		long max;
+		while (nanos > (max = maxNanos.get())) {
+			if (maxNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	TrackMetrics.Latency snapshot() {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		long max = maxNanos.get();
+		return new TrackMetrics.Latency(total, totalNanos.sum(), max, percentile(counts, total, 0.5, max),
+				percentile(counts, total, 0.99, max), percentile(counts, total, 0.999, max));
+	}
+
+	private static long percentile(long[] counts, long total, double quantile, long max) {
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * quantile);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				long upper = i == 0 ? 0 : i >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+				return Math.min(upper, max);
+			}
+		}
+		return max;
+	}
+}
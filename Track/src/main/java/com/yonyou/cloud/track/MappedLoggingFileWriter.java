@@ -0,0 +1,166 @@
+package com.yonyou.cloud.track;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于内存映射的日志文件写入
+ *
+ * 写入时只把数据复制到一个预分配的映射段中，映射段写满、超过发布间隔或关闭时，再通过
+ * transferTo 把整段数据追加到日志文件。日志文件只会以完整的行增长，不会出现预分配的空白尾部，
+ * 因此 logstash 可以一直按行读取。
+ *
+ * 映射段保存在日志文件同目录下的隐藏文件中，文件头记录已写入的长度，进程异常退出后，
+ * 下一次打开同一个日志文件时会先把未发布的数据补写到日志文件；已经换了文件名（例如跨过滚动边界）时，
+ * 由消费者启动时的 {@link #recover(String)} 补写到原来的日志文件。每个日志文件只允许一个进程使用该写入方式。
+ */
+class MappedLoggingFileWriter implements Track.LoggingFileWriter {
+
+	private final static int HEADER_SIZE = 8;
+	private final static String SEGMENT_SUFFIX = ".mmap";
+
+	private final String fileName;
+	private final File segmentFile;
+	private final FileChannel target;
+	private final FileChannel segmentChannel;
+	private final MappedByteBuffer segment;
+	private final int segmentSize;
+	private final long publishIntervalNanos;
+
+	// 映射段中尚未发布的字节数
+	private int staged;
+	private long lastPublishNanos;
+
+	MappedLoggingFileWriter(final String fileName, final int segmentSize, final long publishIntervalMillis)
+			throws IOException {
+		this.fileName = fileName;
+		this.segmentSize = segmentSize;
+		this.publishIntervalNanos = TimeUnit.MILLISECONDS.toNanos(publishIntervalMillis);
+
+		File file = new File(fileName).getAbsoluteFile();
+		this.segmentFile = new File(file.getParentFile(), "." + file.getName() + SEGMENT_SUFFIX);
+		this.target = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		this.segmentChannel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + segmentSize);
+
+		// 恢复上一次异常退出时未发布的数据
+		long recovered = segment.getLong(0);
+		this.staged = recovered > 0 && recovered <= segmentSize ? (int) recovered : 0;
+		publish();
+	}
+
+	/**
+	 * 把同一前缀下上一次运行遗留的映射段补写到各自的日志文件并删除，在打开任何写入之前调用
+	 *
+	 * @return 补写的字节数
+	 */
+	static long recover(final String filenamePrefix) throws IOException {
+		File prefix = new File(filenamePrefix).getAbsoluteFile();
+		File[] files = prefix.getParentFile().listFiles();
+		if (files == null) {
+			return 0;
+		}
+		final String segmentPrefix = "." + prefix.getName() + ".";
+		long recovered = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith(segmentPrefix) || !name.endsWith(SEGMENT_SUFFIX)
+					|| name.length() <= segmentPrefix.length() + SEGMENT_SUFFIX.length()) {
+				continue;
+			}
+			File targetFile = new File(file.getParentFile(), name.substring(1, name.length() - SEGMENT_SUFFIX.length()));
+			try (FileChannel segmentChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				long size = segmentChannel.size() - HEADER_SIZE;
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				while (header.hasRemaining() && segmentChannel.read(header, header.position()) > 0) {
+				}
+				long staged = header.hasRemaining() ? 0 : header.getLong(0);
+				if (staged > 0 && staged <= size) {
+					try (FileChannel target = FileChannel.open(targetFile.toPath(), StandardOpenOption.CREATE,
+							StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+						long position = HEADER_SIZE;
+						long end = HEADER_SIZE + staged;
+						while (position < end) {
+							position += segmentChannel.transferTo(position, end - position, target);
+						}
+					}
+					recovered += staged;
+				}
+			}
+			if (!file.delete()) {
+				throw new IOException("fail to delete recovered mapped segment " + file);
+			}
+		}
+		return recovered;
+	}
+
+	@Override
+	public boolean isValid(final String fileName) {
+		return this.fileName.equals(fileName);
+	}
+
+	@Override
+	public boolean write(final ByteBuffer[] buffers) {
+		try {
+			// 复制到映射段的数据即视为已写入，源缓冲区的 position 随之前进
+			for (ByteBuffer source : buffers) {
+				if (source.remaining() > segmentSize - staged) {
+					// 映射段剩余空间不足，先发布已有数据再从头开始
+					publish();
+				}
+				if (source.remaining() > segmentSize) {
+					// 超过整个映射段的数据直接写入日志文件
+					while (source.hasRemaining()) {
+						target.write(source);
+					}
+					continue;
+				}
+				segment.position(HEADER_SIZE + staged);
+				staged += source.remaining();
+				segment.put(source);
+				segment.putLong(0, staged);
+			}
+
+			if (System.nanoTime() - lastPublishNanos >= publishIntervalNanos) {
+				publish();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("fail to write file.", e);
+		}
+		return true;
+	}
+
+	private void publish() throws IOException {
+		long position = HEADER_SIZE;
+		long end = HEADER_SIZE + staged;
+		while (position < end) {
+			position += segmentChannel.transferTo(position, end - position, target);
+		}
+		staged = 0;
+		segment.putLong(0, 0);
+		lastPublishNanos = System.nanoTime();
+	}
+
+	@Override
+	public void close() {
+		try {
+			publish();
+			segment.force();
+			segmentChannel.close();
+			target.close();
+		} catch (Exception e) {
+			throw new RuntimeException("fail to close mapped segment.", e);
+		}
+		// 映射段在关闭或换日时丢弃，不在磁盘上留下预分配的空间
+		if (!segmentFile.delete()) {
+			segmentFile.deleteOnExit();
+		}
+	}
+}
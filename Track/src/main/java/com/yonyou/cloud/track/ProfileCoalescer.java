@@ -0,0 +1,196 @@
+package com.yonyou.cloud.track;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * 在一个时间窗口内合并同一用户的 profile 操作，窗口结束时每个用户每种操作只输出一条记录
+ *
+ * profile_increment 按属性累加，profile_set 后写覆盖前写，profile_append 按顺序拼接列表。
+ * 同一用户的操作类型变化时先输出之前合并的记录，保证同一用户的操作顺序不变，最终的用户属性与逐条发送一致
+ *
+ * 合并在对象锁内完成，输出在对象锁外、输出锁内完成，写文件时不阻塞其他线程的合并。
+ * 合并后的记录对应多个调用位置，不填充 $lib_detail
+ */
+final class ProfileCoalescer {
+
+	private final static class Pending {
+		final String actionType;
+		final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+		long time;
+
+		Pending(String actionType) {
+			this.actionType = actionType;
+		}
+	}
+
+	private final Track track;
+	private final int maxPendingUsers;
+	// 保证输出的顺序与取出的顺序一致，先获取输出锁再获取对象锁
+	private final Object emitLock = new Object();
+	private Map<String, Pending> pending = new HashMap<String, Pending>();
+	private boolean closed = false;
+	private final ScheduledFuture<?> flushTask;
+
+	ProfileCoalescer(Track track, long windowMillis, int maxPendingUsers) {
+		this.track = track;
+		this.maxPendingUsers = maxPendingUsers;
+		this.flushTask = FlushScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, windowMillis);
+	}
+
+	static boolean isCoalescable(String actionType) {
+		return actionType.equals("profile_set") || actionType.equals("profile_increment")
+				|| actionType.equals("profile_append");
+	}
+
+	/**
+	 * 合并一次已经通过校验的 profile 操作
+	 *
+	 * @return 已经关闭时返回 false，由调用方直接发送
+	 */
+	boolean add(String distinctId, String actionType, long time, Map<String, Object> properties) {
+		synchronized (this) {
+			if (closed) {
+				return false;
+			}
+			Pending current = pending.get(distinctId);
+			if (current != null ? current.actionType.equals(actionType) : pending.size() < maxPendingUsers) {
+				merge(distinctId, actionType, time, properties);
+				return true;
+			}
+		}
+
+		// 需要先输出之前合并的记录，持有输出锁，避免新的记录被其他线程先输出
+		synchronized (emitLock) {
+			Collection<Pending> ready;
+			synchronized (this) {
+				if (closed) {
+					return false;
+				}
+				Pending current = pending.get(distinctId);
+				if (current != null && !current.actionType.equals(actionType)) {
+					ready = Collections.singletonList(pending.remove(distinctId));
+				} else if (current == null && pending.size() >= maxPendingUsers) {
+					// 用户数超过上限时提前结束窗口，限制占用的内存
+					ready = drain();
+				} else {
+					ready = Collections.emptyList();
+				}
+				merge(distinctId, actionType, time, properties);
+			}
+			emit(ready);
+		}
+		return true;
+	}
+
+	/**
+	 * 把一次操作合并到该用户的记录中，调用时持有对象锁
+	 */
+	private void merge(String distinctId, String actionType, long time, Map<String, Object> properties) {
+		Pending current = pending.get(distinctId);
+		if (current == null) {
+			current = new Pending(actionType);
+			pending.put(distinctId, current);
+		}
+		current.time = time;
+		if (properties == null) {
+			return;
+		}
+		for (Map.Entry<String, Object> entry : properties.entrySet()) {
+			current.properties.put(entry.getKey(), merge(actionType, current.properties.get(entry.getKey()),
+					entry.getValue()));
+		}
+	}
+
+	private static Object merge(String actionType, Object previous, Object value) {
+		if (previous == null || actionType.equals("profile_set")) {
+			if (value instanceof List<?>) {
+				// 复制列表，之后的拼接不影响调用方
+				return new ArrayList<Object>((List<?>) value);
+			}
+			return value;
+		}
+		if (actionType.equals("profile_increment")) {
+			Number a = (Number) previous;
+			Number b = (Number) value;
+			if (isIntegral(a) && isIntegral(b)) {
+				return a.longValue() + b.longValue();
+			}
+			return a.doubleValue() + b.doubleValue();
+		}
+		@SuppressWarnings("unchecked")
+		List<Object> list = (List<Object>) previous;
+		list.addAll((List<?>) value);
+		return list;
+	}
+
+	private static boolean isIntegral(Number number) {
+		return number instanceof Long || number instanceof Integer || number instanceof Short
+				|| number instanceof Byte;
+	}
+
+	/**
+	 * 输出某个用户合并中的记录，用于该用户的其他 profile 操作之前
+	 */
+	void flush(String distinctId) {
+		synchronized (emitLock) {
+			Pending current;
+			synchronized (this) {
+				current = pending.remove(distinctId);
+			}
+			if (current != null) {
+				emit(Collections.singletonList(current));
+			}
+		}
+	}
+
+	void flush() {
+		synchronized (emitLock) {
+			Collection<Pending> ready;
+			synchronized (this) {
+				ready = drain();
+			}
+			emit(ready);
+		}
+	}
+
+	/**
+	 * 关闭后不再合并，之后的 add 返回 false
+	 */
+	void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		flushTask.cancel(false);
+		flush();
+	}
+
+	/**
+	 * 取出所有合并中的记录，调用时持有对象锁
+	 */
+	private Collection<Pending> drain() {
+		if (pending.isEmpty()) {
+			return Collections.emptyList();
+		}
+		Collection<Pending> ready = pending.values();
+		pending = new HashMap<String, Pending>();
+		return ready;
+	}
+
+	private void emit(Collection<Pending> ready) {
+		for (Pending current : ready) {
+			track.sendEvent(current.actionType, null, null, current.time, current.properties, false);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package com.yonyou.cloud.track;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 最近发送过的用户属性，用于跳过不会改变用户属性的 profile_set 和 profile_set_once
+ *
+ * 按用户数和估算的字节数限制大小，超出时淘汰最久未使用的用户。只记录本进程发送过的属性，
+ * 其他进程修改同一用户的属性时，本进程可能跳过一次实际会改变属性的 profile_set
+ */
+final class ProfileStateCache {
+
+	// 估算字节数时每个用户和每个属性的固定开销
+	private final static int ENTRY_OVERHEAD = 96;
+	private final static int PROPERTY_OVERHEAD = 64;
+
+	/**
+	 * 一个用户已知的属性，value 为 UNKNOWN 表示属性存在但取值未知
+	 */
+	private final static class Entry {
+		final Map<String, Object> properties = new HashMap<String, Object>();
+		long bytes = ENTRY_OVERHEAD;
+	}
+
+	private final static Object UNKNOWN = new Object();
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long bytes;
+
+	final LongAdder hitCount = new LongAdder();
+	final LongAdder missCount = new LongAdder();
+	final LongAdder evictionCount = new LongAdder();
+
+	ProfileStateCache(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * 根据缓存过滤一次已经通过校验的 profile 操作并更新缓存
+	 *
+	 * @return 需要发送的属性，全部可以跳过时返回 null
+	 */
+	synchronized Map<String, Object> filter(String distinctId, String actionType, Map<String, Object> properties) {
+		if (actionType.equals("profile_delete")) {
+			remove(distinctId);
+			return properties;
+		}
+		if (properties == null || properties.isEmpty()) {
+			return properties;
+		}
+
+		Entry entry = entries.get(distinctId);
+		if (actionType.equals("profile_set") || actionType.equals("profile_set_once")) {
+			final boolean setOnce = actionType.equals("profile_set_once");
+			if (entry == null) {
+				entry = new Entry();
+				entries.put(distinctId, entry);
+				bytes += entry.bytes;
+			}
+			Map<String, Object> result = properties;
+			for (Map.Entry<String, Object> property : properties.entrySet()) {
+				final String key = property.getKey();
+				final Object value = property.getValue();
+				final Object known = entry.properties.get(key);
+				final boolean redundant = setOnce ? known != null : known != null && known != UNKNOWN
+						&& known.equals(value);
+				if (redundant) {
+					hitCount.increment();
+					if (result == properties) {
+						// 不修改调用方传入的属性
+						result = new HashMap<String, Object>(properties);
+					}
+					result.remove(key);
+				} else {
+					missCount.increment();
+					// profile_set_once 在服务端可能不生效，只记录属性已存在
+					put(entry, key, setOnce || value == null ? UNKNOWN : copy(value));
+				}
+			}
+			evict();
+			return result.isEmpty() ? null : result;
+		}
+
+		if (entry != null) {
+			if (actionType.equals("profile_unset")) {
+				for (String key : properties.keySet()) {
+					remove(entry, key);
+				}
+			} else {
+				// profile_increment、profile_append 之后属性存在但取值未知
+				for (String key : properties.keySet()) {
+					put(entry, key, UNKNOWN);
+				}
+				evict();
+			}
+		}
+		return properties;
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	synchronized long bytes() {
+		return bytes;
+	}
+
+	private void put(Entry entry, String key, Object value) {
+		Object previous = entry.properties.put(key, value);
+		long delta = estimate(value);
+		if (previous == null) {
+			delta += estimate(key) + PROPERTY_OVERHEAD;
+		} else {
+			delta -= estimate(previous);
+		}
+		entry.bytes += delta;
+		bytes += delta;
+	}
+
+	private void remove(Entry entry, String key) {
+		Object previous = entry.properties.remove(key);
+		if (previous != null) {
+			long delta = estimate(key) + PROPERTY_OVERHEAD + estimate(previous);
+			entry.bytes -= delta;
+			bytes -= delta;
+		}
+	}
+
+	private void remove(String distinctId) {
+		Entry entry = entries.remove(distinctId);
+		if (entry != null) {
+			bytes -= entry.bytes;
+		}
+	}
+
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+			Entry eldest = it.next();
+			it.remove();
+			bytes -= eldest.bytes;
+			evictionCount.increment();
+		}
+	}
+
+	/**
+	 * 列表可能被调用方继续修改，缓存中保存副本
+	 */
+	private static Object copy(Object value) {
+		if (value instanceof List<?>) {
+			return new ArrayList<Object>((List<?>) value);
+		}
+		return value;
+	}
+
+	private static long estimate(Object value) {
+		if (value instanceof String) {
+			return 40 + 2L * ((String) value).length();
+		}
+		if (value instanceof List<?>) {
+			long size = 40;
+			for (Object item : (List<?>) value) {
+				size += 8 + estimate(item);
+			}
+			return size;
+		}
+		return 16;
+	}
+}
@@ -0,0 +1,111 @@
+package com.yonyou.cloud.track;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 已滚动日志文件的压缩与保留策略
+ *
+ * 由后台整理线程定期执行：把已经滚动、一段时间内没有再写入的文件压缩为 .gz，
+ * 并按保留时长和总大小删除最旧的文件。当前周期的文件不会被压缩或删除
+ */
+public class RetentionPolicy {
+
+	public final static long DEFAULT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	public final static long DEFAULT_RELEASE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	public final static long DEFAULT_MAX_BYTES_PER_SECOND = 16 * 1024 * 1024;
+	public final static int DEFAULT_COMPRESSION_LEVEL = 6;
+
+	private final boolean compress;
+	private final long maxAgeMillis;
+	private final long maxTotalBytes;
+
+	private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+	private long maxBytesPerSecond = DEFAULT_MAX_BYTES_PER_SECOND;
+	private long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+	private long releaseMillis = DEFAULT_RELEASE_MILLIS;
+
+	/**
+	 * @param compress
+	 *            是否压缩已滚动的文件
+	 * @param maxAgeMillis
+	 *            文件最后修改后保留的时长，0 表示不限制
+	 * @param maxTotalBytes
+	 *            同一前缀下所有日志文件（含压缩文件）的总大小上限，0 表示不限制
+	 */
+	public RetentionPolicy(boolean compress, long maxAgeMillis, long maxTotalBytes) {
+		if (maxAgeMillis < 0 || maxTotalBytes < 0) {
+			throw new IllegalArgumentException("retention limits must not be negative.");
+		}
+		this.compress = compress;
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxTotalBytes = maxTotalBytes;
+	}
+
+	/**
+	 * 设置 gzip 压缩级别，取值 1-9
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if (compressionLevel < 1 || compressionLevel > 9) {
+			throw new IllegalArgumentException("compression level must be between 1 and 9.");
+		}
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * 设置压缩时每秒最多读取的字节数，避免与业务写日志争抢磁盘，0 表示不限制
+	 */
+	public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+		if (maxBytesPerSecond < 0) {
+			throw new IllegalArgumentException("max bytes per second must not be negative.");
+		}
+		this.maxBytesPerSecond = maxBytesPerSecond;
+	}
+
+	/**
+	 * 设置整理的检查周期
+	 */
+	public void setInterval(long intervalMillis) {
+		if (intervalMillis < 1) {
+			throw new IllegalArgumentException("interval must be positive.");
+		}
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * 设置文件最后一次修改后多久才视为已释放，避免处理其他进程仍在写入的文件
+	 */
+	public void setReleaseTime(long releaseMillis) {
+		if (releaseMillis < 0) {
+			throw new IllegalArgumentException("release time must not be negative.");
+		}
+		this.releaseMillis = releaseMillis;
+	}
+
+	public boolean isCompress() {
+		return compress;
+	}
+
+	public long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	public long getMaxTotalBytes() {
+		return maxTotalBytes;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public long getMaxBytesPerSecond() {
+		return maxBytesPerSecond;
+	}
+
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	public long getReleaseMillis() {
+		return releaseMillis;
+	}
+}
@@ -0,0 +1,71 @@
+package com.yonyou.cloud.track;
+
+import java.io.File;
+
+/**
+ * 按照 {@link RollingPolicy} 计算当前应该写入的文件名
+ *
+ * 只在跨过周期边界或者文件超过大小上限时重新计算，其他时候直接返回上一次的文件名。
+ * 不是线程安全的，由消费者在写文件的锁内调用
+ */
+final class RollingFile {
+
+	private final String filenamePrefix;
+	// 写入者在文件名之后追加的后缀，例如分片文件的 .分片名，用于读取实际文件的大小
+	private final String pathSuffix;
+	private final RollingPolicy policy;
+	// 没有大小上限时为 Long.MAX_VALUE
+	private final long maxFileBytes;
+
+	private long boundary = Long.MIN_VALUE;
+	private String periodName;
+	private int index;
+	private long written;
+	private String fileName;
+
+	RollingFile(String filenamePrefix, RollingPolicy policy) {
+		this(filenamePrefix, "", policy);
+	}
+
+	RollingFile(String filenamePrefix, String pathSuffix, RollingPolicy policy) {
+		this.filenamePrefix = filenamePrefix;
+		this.pathSuffix = pathSuffix;
+		this.policy = policy;
+		this.maxFileBytes = policy.getMaxFileBytes() > 0 ? policy.getMaxFileBytes() : Long.MAX_VALUE;
+	}
+
+	String fileName(long now) {
+		if (now >= boundary || written >= maxFileBytes) {
+			roll(now);
+		}
+		return fileName;
+	}
+
+	/**
+	 * 记录写入当前文件的字节数
+	 */
+	void written(long bytes) {
+		written += bytes;
+	}
+
+	private void roll(long now) {
+		if (now >= boundary) {
+			boundary = policy.nextBoundary(now);
+			periodName = filenamePrefix + "." + policy.periodSuffix(now);
+			index = 0;
+		} else {
+			index++;
+		}
+		fileName = indexedName(index);
+		written = new File(fileName + pathSuffix).length();
+		// 其他进程或者上一次运行已经写满的文件直接跳过
+		while (written >= maxFileBytes) {
+			fileName = indexedName(++index);
+			written = new File(fileName + pathSuffix).length();
+		}
+	}
+
+	private String indexedName(int index) {
+		return index == 0 ? periodName : periodName + "." + index;
+	}
+}
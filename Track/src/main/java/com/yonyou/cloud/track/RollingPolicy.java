@@ -0,0 +1,103 @@
+package com.yonyou.cloud.track;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * 日志文件的滚动策略
+ *
+ * 文件名为 filenamePrefix.周期后缀，设置了单个文件的大小上限时，超过上限后依次写入
+ * filenamePrefix.周期后缀.1、filenamePrefix.周期后缀.2 ……
+ *
+ * 周期的结束时间在滚动时预先算好，写入时只比较一次时间戳。可以继承该类实现其他周期
+ */
+public abstract class RollingPolicy {
+
+	private final long maxFileBytes;
+
+	/**
+	 * @param maxFileBytes
+	 *            单个文件的大小上限，0 表示不限制
+	 */
+	protected RollingPolicy(long maxFileBytes) {
+		if (maxFileBytes < 0) {
+			throw new IllegalArgumentException("max file bytes must not be negative.");
+		}
+		this.maxFileBytes = maxFileBytes;
+	}
+
+	/**
+	 * 按天滚动，文件名与原来的 filenamePrefix.yyyy-MM-dd 一致
+	 */
+	public static RollingPolicy daily() {
+		return daily(0);
+	}
+
+	public static RollingPolicy daily(long maxFileBytes) {
+		return new CalendarRollingPolicy("yyyy-MM-dd", Calendar.DAY_OF_MONTH, maxFileBytes);
+	}
+
+	/**
+	 * 按小时滚动，文件名为 filenamePrefix.yyyy-MM-dd-HH
+	 */
+	public static RollingPolicy hourly() {
+		return hourly(0);
+	}
+
+	public static RollingPolicy hourly(long maxFileBytes) {
+		return new CalendarRollingPolicy("yyyy-MM-dd-HH", Calendar.HOUR_OF_DAY, maxFileBytes);
+	}
+
+	/**
+	 * @return 单个文件的大小上限，0 表示不限制
+	 */
+	public long getMaxFileBytes() {
+		return maxFileBytes;
+	}
+
+	/**
+	 * @return now 所在周期的结束时间，即下一个周期的开始时间，单位毫秒
+	 */
+	public abstract long nextBoundary(long now);
+
+	/**
+	 * @return now 所在周期的文件名后缀
+	 */
+	public abstract String periodSuffix(long now);
+
+	/**
+	 * 以本地时区的自然天或自然小时为周期
+	 */
+	private static class CalendarRollingPolicy extends RollingPolicy {
+
+		private final String pattern;
+		private final int field;
+
+		CalendarRollingPolicy(String pattern, int field, long maxFileBytes) {
+			super(maxFileBytes);
+			this.pattern = pattern;
+			this.field = field;
+		}
+
+		@Override
+		public long nextBoundary(long now) {
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTimeInMillis(now);
+			if (field == Calendar.DAY_OF_MONTH) {
+				calendar.set(Calendar.HOUR_OF_DAY, 0);
+			}
+			calendar.set(Calendar.MINUTE, 0);
+			calendar.set(Calendar.SECOND, 0);
+			calendar.set(Calendar.MILLISECOND, 0);
+			calendar.add(field, 1);
+			return calendar.getTimeInMillis();
+		}
+
+		@Override
+		public String periodSuffix(long now) {
+			// 只在滚动时调用，每次新建即可
+			return new SimpleDateFormat(pattern).format(new Date(now));
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package com.yonyou.cloud.track;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按事件名配置的采样与限流，通过 {@link Track#setSampler(String, Sampler)} 设置
+ *
+ * 在校验和组装之前执行，被丢弃的事件只需一次哈希查找和一次计数。保留的事件采样率小于 1 时
+ * 带有 $sample_rate 属性，下游按 1 / $sample_rate 还原数量
+ */
+public abstract class Sampler {
+
+	private final static double TWO_TO_32 = 4294967296.0;
+
+	private final String property;
+
+	Sampler(String property) {
+		this.property = property;
+	}
+
+	/**
+	 * 按固定概率随机采样
+	 *
+	 * @param rate
+	 *            保留的比例，0 到 1
+	 */
+	public static Sampler rate(double rate) {
+		return new RateSampler(rate);
+	}
+
+	/**
+	 * 按属性值的哈希确定性采样，同一属性值（如用户 ID）的事件要么全部保留，要么全部丢弃，
+	 * 并且各进程的结果一致。事件没有该属性时退化为随机采样
+	 *
+	 * @param property
+	 *            参与哈希的属性名
+	 * @param rate
+	 *            保留的比例，0 到 1
+	 */
+	public static Sampler hash(String property, double rate) {
+		if (property == null) {
+			throw new IllegalArgumentException("property must not be null.");
+		}
+		return new HashSampler(property, rate);
+	}
+
+	/**
+	 * 令牌桶限流，超出速率的事件被丢弃，保留事件的采样率按上一秒的保留比例估算
+	 *
+	 * @param permitsPerSecond
+	 *            每秒最多保留的事件数
+	 * @param burst
+	 *            允许的突发事件数
+	 */
+	public static Sampler tokenBucket(double permitsPerSecond, int burst) {
+		return new TokenBucketSampler(permitsPerSecond, burst);
+	}
+
+	/**
+	 * @return 哈希采样使用的属性名，其他采样方式为 null
+	 */
+	String getProperty() {
+		return property;
+	}
+
+	/**
+	 * @param propertyValue
+	 *            {@link #getProperty()} 对应的属性值，不需要时为 null
+	 * @return 保留时返回该事件的采样率，丢弃时返回 0
+	 */
+	abstract double sample(Object propertyValue);
+
+	private static long threshold(double rate) {
+		if (rate < 0 || rate > 1 || Double.isNaN(rate)) {
+			throw new IllegalArgumentException("sample rate must be between 0 and 1.");
+		}
+		return (long) (rate * TWO_TO_32);
+	}
+
+	private static class RateSampler extends Sampler {
+		final double rate;
+		// 随机数的低 32 位小于 threshold 时保留
+		final long threshold;
+
+		RateSampler(double rate) {
+			this(null, rate);
+		}
+
+		RateSampler(String property, double rate) {
+			super(property);
+			this.rate = rate;
+			this.threshold = threshold(rate);
+		}
+
+		@Override
+		double sample(Object propertyValue) {
+			return (ThreadLocalRandom.current().nextInt() & 0xffffffffL) < threshold ? rate : 0;
+		}
+	}
+
+	private static class HashSampler extends RateSampler {
+
+		HashSampler(String property, double rate) {
+			super(property, rate);
+		}
+
+		@Override
+		double sample(Object propertyValue) {
+			if (propertyValue == null) {
+				return super.sample(null);
+			}
+			return (mix(propertyValue.toString().hashCode()) & 0xffffffffL) < threshold ? rate : 0;
+		}
+
+		/**
+		 * murmur3 的 fmix32，打散 String.hashCode 的低位分布
+		 */
+		private static int mix(int h) {
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			h *= 0xc2b2ae35;
+			h ^= h >>> 16;
+			return h;
+		}
+	}
+
+	/**
+	 * 以 GCRA 方式实现的令牌桶，只需维护下一个令牌的理论到达时间
+	 */
+	private static class TokenBucketSampler extends Sampler {
+		private final static long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+		private final long intervalNanos;
+		private final long toleranceNanos;
+		private final AtomicLong theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+
+		// 用于估算保留比例
+		private final LongAdder offered = new LongAdder();
+		private final LongAdder kept = new LongAdder();
+		private final AtomicLong windowEnd = new AtomicLong(System.nanoTime() + WINDOW_NANOS);
+		private volatile double keptRate = 1;
+
+		TokenBucketSampler(double permitsPerSecond, int burst) {
+			super(null);
+			if (!(permitsPerSecond > 0) || burst < 1) {
+				throw new IllegalArgumentException("permits per second and burst must be positive.");
+			}
+			this.intervalNanos = Math.max((long) (WINDOW_NANOS / permitsPerSecond), 1);
+			this.toleranceNanos = intervalNanos * (burst - 1);
+		}
+
+		@Override
+		double sample(Object propertyValue) {
+			final long now = System.nanoTime();
+			offered.increment();
+			rollWindow(now);
+			long tat;
+			long next;
+			do {
+				tat = theoreticalArrival.get();
+				long start = tat == Long.MIN_VALUE || tat - now < 0 ? now : tat;
+				if (start - now > toleranceNanos) {
+					return 0;
+				}
+				next = start + intervalNanos;
+			} while (!theoreticalArrival.compareAndSet(tat, next));
+			kept.increment();
+			return keptRate;
+		}
+
+		private void rollWindow(long now) {
+			long end = windowEnd.get();
+			if (now - end >= 0 && windowEnd.compareAndSet(end, now + WINDOW_NANOS)) {
+				long offeredCount = offered.sumThenReset();
+				long keptCount = kept.sumThenReset();
+				keptRate = offeredCount == 0 || keptCount >= offeredCount ? 1
+						: (double) Math.max(keptCount, 1) / offeredCount;
+			}
+		}
+	}
+}
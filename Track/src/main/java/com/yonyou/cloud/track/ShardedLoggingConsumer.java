@@ -0,0 +1,213 @@
+package com.yonyou.cloud.track;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yonyou.cloud.track.util.ByteArrayBuffer;
+
+/**
+ * 把事件分散写到多个日志文件的消费者，文件可以位于不同的磁盘，写入带宽随分片数增加
+ *
+ * 每个分片是独立的文件日志消费者，有自己的缓冲区、锁、文件和后台刷新线程，一个磁盘的写入阻塞不影响其他分片。每条记录带有分片号 $shard 和
+ * 分片内从 1 开始递增的序号 $seq，序号与记录在分片文件中的顺序一致，下游可以据此还原各分片内的顺序。
+ * logstash 可以并行读取各分片的 filenamePrefix.*
+ */
+public class ShardedLoggingConsumer implements Track.Consumer {
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+	private final static byte[] SEQ_FIELD = ",\"$seq\":".getBytes(UTF8);
+
+	/**
+	 * 选择分片的方式
+	 */
+	public enum Partition {
+		/** 按线程分片，同一线程的事件在同一分片中保持顺序 */
+		THREAD,
+		/** 按事件名分片，同名事件在同一分片中，profile 操作按操作类型分片 */
+		EVENT_NAME,
+		/** 轮流写入各分片，各分片负载最均衡 */
+		ROUND_ROBIN
+	}
+
+	/**
+	 * 一个分片，序号的分配和写入在同一把锁内完成
+	 */
+	private final static class Shard {
+		final ScheduledThreadPoolExecutor flushExecutor;
+		final Track.ConcurrentLoggingConsumer consumer;
+		final byte[] shardField;
+		long sequence;
+
+		Shard(String filenamePrefix, int index, int bufferSize, long maxStaleMillis) throws IOException {
+			this.flushExecutor = FlushScheduler.newExecutor("track-shard-flusher-" + index);
+			this.consumer = new Track.ConcurrentLoggingConsumer(filenamePrefix, bufferSize, 1, maxStaleMillis,
+					flushExecutor);
+			this.shardField = (",\"$shard\":" + index).getBytes(UTF8);
+		}
+	}
+
+	private final Shard[] shards;
+	private final Partition partition;
+	private final AtomicInteger roundRobin = new AtomicInteger();
+	private final JsonEventEncoder encoder = new JsonEventEncoder();
+	private final ThreadLocal<ByteArrayBuffer> buffers = new ThreadLocal<ByteArrayBuffer>() {
+		@Override
+		protected ByteArrayBuffer initialValue() {
+			return new ByteArrayBuffer(1024);
+		}
+	};
+
+	public ShardedLoggingConsumer(String[] filenamePrefixes, Partition partition) throws IOException {
+		this(filenamePrefixes, partition, 8192, Track.InnerLoggingConsumer.DEFAULT_MAX_STALE_MILLIS);
+	}
+
+	/**
+	 * @param filenamePrefixes
+	 *            每个分片的文件名前缀，不能重复，可以位于不同的挂载点
+	 * @param partition
+	 *            选择分片的方式
+	 * @param bufferSize
+	 *            每个分片的缓冲大小
+	 * @param maxStaleMillis
+	 *            每个分片中数据允许停留的最长时间，0 表示不限制
+	 */
+	public ShardedLoggingConsumer(String[] filenamePrefixes, Partition partition, int bufferSize,
+			long maxStaleMillis) throws IOException {
+		if (filenamePrefixes.length == 0) {
+			throw new IllegalArgumentException("at least one shard is required.");
+		}
+		Set<String> paths = new HashSet<String>();
+		for (String filenamePrefix : filenamePrefixes) {
+			if (!paths.add(new File(filenamePrefix).getAbsoluteFile().toPath().normalize().toString())) {
+				throw new IllegalArgumentException("duplicate filename prefix: " + filenamePrefix);
+			}
+		}
+		this.partition = partition;
+		this.shards = new Shard[filenamePrefixes.length];
+		for (int i = 0; i < filenamePrefixes.length; i++) {
+			shards[i] = new Shard(filenamePrefixes[i], i, bufferSize, maxStaleMillis);
+		}
+	}
+
+	/**
+	 * 设置所有分片的滚动策略
+	 */
+	public void setRollingPolicy(RollingPolicy rollingPolicy) {
+		for (Shard shard : shards) {
+			shard.consumer.setRollingPolicy(rollingPolicy);
+		}
+	}
+
+	/**
+	 * 设置所有分片的压缩与保留策略
+	 */
+	public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+		for (Shard shard : shards) {
+			shard.consumer.setRetentionPolicy(retentionPolicy);
+		}
+	}
+
+	/**
+	 * 设置所有分片的溢出处理策略，maxBufferedBytes 为每个分片的上限
+	 */
+	public void setOverflowPolicy(Track.OverflowPolicy overflowPolicy, long maxBufferedBytes) throws IOException {
+		for (Shard shard : shards) {
+			shard.consumer.setOverflowPolicy(overflowPolicy, maxBufferedBytes);
+		}
+	}
+
+	@Override
+	public void send(Map<String, Object> message) {
+		final Shard shard = shards[select(message)];
+
+		// 锁外编码，锁内只追加分片号和序号
+		final ByteArrayBuffer buffer = buffers.get();
+		buffer.reset();
+		encoder.encodeValue(message, buffer);
+		final int end = buffer.length() - 1;
+		if (end < 1 || buffer.array()[end] != '}') {
+			throw new IllegalStateException("event is not encoded as a JSON object.");
+		}
+		final boolean empty = buffer.array()[end - 1] == '{';
+
+		synchronized (shard) {
+			buffer.setLength(end);
+			byte[] shardField = shard.shardField;
+			if (empty) {
+				buffer.write(shardField, 1, shardField.length - 1);
+			} else {
+				buffer.write(shardField, 0, shardField.length);
+			}
+			buffer.write(SEQ_FIELD, 0, SEQ_FIELD.length);
+			writeLong(buffer, ++shard.sequence);
+			buffer.write('}');
+			buffer.write('\n');
+			shard.consumer.sendEncoded(buffer.array(), 0, buffer.length());
+		}
+	}
+
+	private int select(Map<String, Object> message) {
+		final int count = shards.length;
+		if (count == 1) {
+			return 0;
+		}
+		switch (partition) {
+		case THREAD:
+			return (int) (Thread.currentThread().getId() % count);
+		case EVENT_NAME:
+			Object key = message.get("event");
+			if (key == null) {
+				key = message.get("type");
+			}
+			return key == null ? 0 : (key.hashCode() & Integer.MAX_VALUE) % count;
+		default:
+			return (roundRobin.getAndIncrement() & Integer.MAX_VALUE) % count;
+		}
+	}
+
+	private static void writeLong(ByteArrayBuffer buffer, long value) {
+		final int start = buffer.length();
+		do {
+			buffer.write((int) ('0' + value % 10));
+			value /= 10;
+		} while (value > 0);
+		// 数字是逆序写入的，原地翻转
+		final byte[] array = buffer.array();
+		for (int i = start, j = buffer.length() - 1; i < j; i++, j--) {
+			byte b = array[i];
+			array[i] = array[j];
+			array[j] = b;
+		}
+	}
+
+	@Override
+	public void flush() {
+		for (Shard shard : shards) {
+			shard.consumer.flush();
+		}
+	}
+
+	@Override
+	public void close() {
+		for (Shard shard : shards) {
+			try {
+				shard.consumer.close();
+			} finally {
+				shard.flushExecutor.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * @return 第 index 个分片的文件日志消费者，用于读取丢弃数等指标
+	 */
+	public Track.ConcurrentLoggingConsumer getShard(int index) {
+		return shards[index].consumer;
+	}
+}
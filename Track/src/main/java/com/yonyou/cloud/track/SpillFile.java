@@ -0,0 +1,133 @@
+package com.yonyou.cloud.track;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 缓冲区溢出时暂存数据的本地文件
+ *
+ * 写入受阻时整段缓冲区追加到溢出文件，写入恢复后按完整的行分批写回日志文件，全部写回后截断。
+ * 进程重启时会继续写回上次遗留的数据
+ */
+final class SpillFile {
+
+	private final static int READ_CHUNK_SIZE = 1024 * 1024;
+
+	private final String fileName;
+	private final long maxBytes;
+	private FileChannel channel;
+	// 已经写回日志文件的位置
+	private long drainedPosition;
+
+	SpillFile(final String fileName, final long maxBytes) throws IOException {
+		this.fileName = fileName;
+		this.maxBytes = maxBytes;
+		if (new File(fileName).length() > 0) {
+			open();
+		}
+	}
+
+	private void open() throws IOException {
+		this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * @return 超过文件大小上限或写入失败时返回 false，数据没有被保存
+	 */
+	synchronized boolean append(final ByteBuffer data) {
+		try {
+			if (channel == null) {
+				open();
+			}
+			long size = channel.size();
+			if (size + data.remaining() > maxBytes) {
+				return false;
+			}
+			while (data.hasRemaining()) {
+				size += channel.write(data, size);
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	synchronized boolean hasData() {
+		try {
+			return channel != null && channel.size() > drainedPosition;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 把暂存的数据写回日志文件，每次只写完整的行
+	 *
+	 * @return 写回的字节数
+	 */
+	synchronized long drainTo(final Track.LoggingFileWriter fileWriter) {
+		if (channel == null) {
+			return 0;
+		}
+		final long start = drainedPosition;
+		try {
+			ByteBuffer chunk = ByteBuffer.allocate(READ_CHUNK_SIZE);
+			long size = channel.size();
+			while (drainedPosition < size) {
+				chunk.clear();
+				while (chunk.hasRemaining() && drainedPosition + chunk.position() < size) {
+					channel.read(chunk, drainedPosition + chunk.position());
+				}
+				int end = chunk.position();
+				while (end > 0 && chunk.get(end - 1) != '\n') {
+					end--;
+				}
+				if (end == 0) {
+					if (chunk.position() < chunk.capacity()) {
+						// 文件末尾是不完整的行，只可能是进程在追加时退出，直接丢弃
+						drainedPosition = size;
+						break;
+					}
+					// 一行超过了读取块的大小，扩大读取块
+					chunk = ByteBuffer.allocate(chunk.capacity() << 1);
+					continue;
+				}
+				// 写入失败时跳过已经写入文件的部分，下一次从断点继续
+				ByteBuffer data = ByteBuffer.wrap(chunk.array(), 0, end);
+				boolean written;
+				try {
+					written = fileWriter.write(new ByteBuffer[] { data });
+				} catch (RuntimeException e) {
+					drainedPosition += data.position();
+					throw e;
+				}
+				if (!written) {
+					drainedPosition += data.position();
+					return drainedPosition - start;
+				}
+				drainedPosition += end;
+			}
+			channel.truncate(0);
+			drainedPosition = 0;
+			return size - start;
+		} catch (IOException e) {
+			throw new RuntimeException("fail to drain spill file.", e);
+		}
+	}
+
+	synchronized void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				throw new RuntimeException("fail to close spill file.", e);
+			}
+			channel = null;
+		}
+	}
+}
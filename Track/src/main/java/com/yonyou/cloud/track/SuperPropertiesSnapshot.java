@@ -0,0 +1,81 @@
+package com.yonyou.cloud.track;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * 公共属性的只读快照，属性名和属性值都预先编码为 JSON
+ *
+ * 只在注册或清除公共属性时重建，序列化事件时直接把预编码的字节拼接到 properties 中
+ */
+final class SuperPropertiesSnapshot {
+
+	private final Map<String, Object> values;
+	private final String[] keys;
+	private final SerializedString[] encodedKeys;
+	private final SerializedString[] encodedValues;
+
+	private SuperPropertiesSnapshot(Map<String, Object> values, String[] keys, SerializedString[] encodedKeys,
+			SerializedString[] encodedValues) {
+		this.values = values;
+		this.keys = keys;
+		this.encodedKeys = encodedKeys;
+		this.encodedValues = encodedValues;
+	}
+
+	static SuperPropertiesSnapshot of(Map<String, Object> properties, ObjectWriter jsonWriter) {
+		Map<String, Object> values = new LinkedHashMap<String, Object>(properties);
+		String[] keys = new String[values.size()];
+		SerializedString[] encodedKeys = new SerializedString[keys.length];
+		SerializedString[] encodedValues = new SerializedString[keys.length];
+		int i = 0;
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			keys[i] = entry.getKey();
+			encodedKeys[i] = new SerializedString(entry.getKey());
+			try {
+				encodedValues[i] = new SerializedString(jsonWriter.writeValueAsString(entry.getValue()));
+			} catch (IOException e) {
+				throw new RuntimeException("fail to process json", e);
+			}
+			i++;
+		}
+		return new SuperPropertiesSnapshot(Collections.unmodifiableMap(values), keys, encodedKeys, encodedValues);
+	}
+
+	Map<String, Object> values() {
+		return values;
+	}
+
+	int size() {
+		return keys.length;
+	}
+
+	String key(int index) {
+		return keys[index];
+	}
+
+	/**
+	 * 写入没有被事件属性覆盖的公共属性
+	 *
+	 * @param overrides
+	 *            事件自身的属性，为 null 表示没有
+	 */
+	void writeFields(JsonGenerator gen, Map<?, ?> overrides) throws IOException {
+		for (int i = 0; i < keys.length; i++) {
+			if (overrides == null || !overrides.containsKey(keys[i])) {
+				writeField(gen, i);
+			}
+		}
+	}
+
+	void writeField(JsonGenerator gen, int index) throws IOException {
+		gen.writeFieldName(encodedKeys[index]);
+		gen.writeRawValue(encodedValues[index]);
+	}
+}
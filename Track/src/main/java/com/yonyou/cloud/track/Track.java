@@ -4,22 +4,36 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Pattern;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
@@ -29,13 +43,13 @@ import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.annotation.JsonInclude.Include;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.yonyou.cloud.exceptions.InvalidArgumentException;
 import com.yonyou.cloud.track.util.Base64Coder;
+import com.yonyou.cloud.track.util.ByteArrayBuffer;
 
 /**
  * 埋点客户端
@@ -53,7 +67,69 @@ public class Track {
 		this.enableTimeFree = enableTimeFree;
 	}
 
-	private interface Consumer {
+	/**
+	 * $lib_detail 调用位置的采集方式
+	 *
+	 * Java 9 及以上版本通过 multi-release jar 自动使用 StackWalker 获取调用位置，只遍历少量栈帧
+	 */
+	public enum CallerInfoMode {
+		/** 不采集调用位置 */
+		DISABLED,
+		/** 每 N 个事件采集一次调用位置 */
+		SAMPLED,
+		/**
+		 * 每个事件都采集调用位置，同一调用位置共享同一份 lib 属性。缓存只省去拼接 lib 属性的开销，
+		 * Java 8 下每个事件仍要获取完整的异常栈，对开销敏感时使用 SAMPLED
+		 */
+		CACHED
+	}
+
+	private final static int LIB_PROPERTIES_CACHE_SIZE = 1024;
+
+	private volatile CallerInfoMode callerInfoMode = CallerInfoMode.CACHED;
+	private volatile int callerInfoSampleInterval = 100;
+	private volatile Map<String, String> baseLibProperties;
+	private final ConcurrentHashMap<StackTraceElement, Map<String, String>> libPropertiesCache = new ConcurrentHashMap<StackTraceElement, Map<String, String>>();
+
+	public CallerInfoMode getCallerInfoMode() {
+		return callerInfoMode;
+	}
+
+	public void setCallerInfoMode(CallerInfoMode callerInfoMode) {
+		this.callerInfoMode = callerInfoMode;
+	}
+
+	/**
+	 * 设置调用位置的采集方式
+	 *
+	 * @param callerInfoMode
+	 *            采集方式
+	 * @param sampleInterval
+	 *            SAMPLED 模式下的采样间隔，即每 sampleInterval 个事件采集一次
+	 */
+	public void setCallerInfoMode(CallerInfoMode callerInfoMode, int sampleInterval) {
+		if (sampleInterval < 1) {
+			throw new IllegalArgumentException("sample interval must be positive.");
+		}
+		this.callerInfoSampleInterval = sampleInterval;
+		this.callerInfoMode = callerInfoMode;
+	}
+
+	/**
+	 * 写入受阻、日志缓冲区达到上限时的处理策略
+	 */
+	public enum OverflowPolicy {
+		/** 业务线程等待缓冲区腾出空间，超时后丢弃该事件 */
+		BLOCK,
+		/** 丢弃新的事件 */
+		DROP_NEWEST,
+		/** 丢弃缓冲区中最早的事件 */
+		DROP_OLDEST,
+		/** 把缓冲区中的数据写入本地溢出文件，写入恢复后再写回日志文件 */
+		SPILL
+	}
+
+	interface Consumer {
 		void send(Map<String, Object> message);
 
 		void flush();
@@ -430,13 +506,39 @@ public class Track {
 		}
 
 		public ConcurrentLoggingConsumer(String filenamePrefix, int bufferSize) throws IOException {
+			this(filenamePrefix, bufferSize, 1, DEFAULT_MAX_STALE_MILLIS);
+		}
+
+		/**
+		 * 分段缓冲模式，每个业务线程写入自己的分段，刷新时所有分段合并为一次写入
+		 *
+		 * @param filenamePrefix
+		 *            文件名前缀
+		 * @param bufferSize
+		 *            所有分段合计的缓冲大小
+		 * @param stripes
+		 *            分段个数，通常取业务线程数或CPU核数
+		 * @param maxStaleMillis
+		 *            每个分段中数据允许停留的最长时间，0 表示不限制
+		 */
+		public ConcurrentLoggingConsumer(String filenamePrefix, int bufferSize, int stripes, long maxStaleMillis)
+				throws IOException {
+			this(filenamePrefix, bufferSize, stripes, maxStaleMillis, null);
+		}
+
+		/**
+		 * @param flushExecutor
+		 *            执行后台刷新的线程，null 表示使用共用的后台刷新线程
+		 */
+		ConcurrentLoggingConsumer(String filenamePrefix, int bufferSize, int stripes, long maxStaleMillis,
+				ScheduledExecutorService flushExecutor) throws IOException {
 			super(new LoggingFileWriterFactory() {
 				@Override
 				public LoggingFileWriter getFileWriter(String fileName, String scheduleFileName)
 						throws FileNotFoundException {
 					return new ConcurrentLoggingConsumer.InnerLoggingFileWriter(scheduleFileName);
 				}
-			}, filenamePrefix, bufferSize);
+			}, filenamePrefix, bufferSize, stripes, maxStaleMillis, flushExecutor);
 		}
 
 		static class InnerLoggingFileWriter implements LoggingFileWriter {
@@ -461,12 +563,14 @@ public class Track {
 				return this.fileName.equals(fileName);
 			}
 
-			public boolean write(final StringBuilder sb) {
+			public boolean write(final ByteBuffer[] buffers) {
 				FileLock lock = null;
 				try {
 					final FileChannel channel = outputStream.getChannel();
 					lock = channel.lock(0, Long.MAX_VALUE, false);
-					outputStream.write(sb.toString().getBytes("UTF-8"));
+					while (buffers[buffers.length - 1].hasRemaining()) {
+						channel.write(buffers);
+					}
 				} catch (Exception e) {
 					throw new RuntimeException("fail to write file.", e);
 				} finally {
@@ -485,71 +589,655 @@ public class Track {
 
 	}
 
+	/**
+	 * 基于 FileChannel 和堆外缓冲区写文件的日志消费者，适合高吞吐的服务
+	 *
+	 * 只有一个进程写同一个文件时，设置 sharedFile 为 false 可以省去每次写入时的文件锁
+	 */
+	public static class ChannelLoggingConsumer extends InnerLoggingConsumer {
+
+		public ChannelLoggingConsumer(final String filenamePrefix) throws IOException {
+			this(filenamePrefix, 8192, true);
+		}
+
+		public ChannelLoggingConsumer(String filenamePrefix, int bufferSize, boolean sharedFile) throws IOException {
+			this(filenamePrefix, bufferSize, 1, DEFAULT_MAX_STALE_MILLIS, sharedFile);
+		}
+
+		/**
+		 * @param filenamePrefix
+		 *            文件名前缀
+		 * @param bufferSize
+		 *            所有分段合计的缓冲大小
+		 * @param stripes
+		 *            分段个数
+		 * @param maxStaleMillis
+		 *            每个分段中数据允许停留的最长时间，0 表示不限制
+		 * @param sharedFile
+		 *            是否有其他进程同时写同一个文件，为 true 时写入前加文件锁
+		 */
+		public ChannelLoggingConsumer(String filenamePrefix, int bufferSize, int stripes, long maxStaleMillis,
+				final boolean sharedFile) throws IOException {
+			super(new LoggingFileWriterFactory() {
+				@Override
+				public LoggingFileWriter getFileWriter(String fileName, String scheduleFileName) throws IOException {
+					return new ChannelLoggingFileWriter(scheduleFileName, sharedFile);
+				}
+			}, filenamePrefix, bufferSize, stripes, maxStaleMillis);
+		}
+	}
+
+	/**
+	 * 基于内存映射段写文件的日志消费者，写入只是内存复制，映射段定期整段追加到日志文件
+	 *
+	 * 每个日志文件只允许一个进程使用该消费者
+	 */
+	public static class MappedLoggingConsumer extends InnerLoggingConsumer {
+
+		public MappedLoggingConsumer(final String filenamePrefix) throws IOException {
+			this(filenamePrefix, 8192, 1, DEFAULT_MAX_STALE_MILLIS, 8 * 1024 * 1024, 1000);
+		}
+
+		/**
+		 * @param filenamePrefix
+		 *            文件名前缀
+		 * @param bufferSize
+		 *            所有分段合计的缓冲大小
+		 * @param stripes
+		 *            分段个数
+		 * @param maxStaleMillis
+		 *            每个分段中数据允许停留的最长时间，0 表示不限制
+		 * @param segmentSize
+		 *            映射段大小
+		 * @param publishIntervalMillis
+		 *            映射段中的数据追加到日志文件的最长间隔，0 表示每次写入都追加
+		 */
+		public MappedLoggingConsumer(String filenamePrefix, int bufferSize, int stripes, long maxStaleMillis,
+				final int segmentSize, final long publishIntervalMillis) throws IOException {
+			super(new LoggingFileWriterFactory() {
+				@Override
+				public LoggingFileWriter getFileWriter(String fileName, String scheduleFileName) throws IOException {
+					return new MappedLoggingFileWriter(scheduleFileName, segmentSize, publishIntervalMillis);
+				}
+			}, filenamePrefix, bufferSize, stripes, maxStaleMillis);
+			// 进程异常退出后，已经换了文件名的映射段不会再被打开，启动时补写
+			MappedLoggingFileWriter.recover(filenamePrefix);
+		}
+	}
+
+	/**
+	 * 多进程写同一份日志时使用，每个进程写自己的分片文件，不需要文件锁
+	 *
+	 * 分片文件名为 filenamePrefix.yyyy-MM-dd.主机名-进程号-序号，logstash 使用 filenamePrefix.* 即可读取所有分片
+	 */
+	public static class SegmentedLoggingConsumer extends InnerLoggingConsumer {
+
+		private final static AtomicInteger SEGMENT_SEQUENCE = new AtomicInteger();
+
+		public SegmentedLoggingConsumer(final String filenamePrefix) throws IOException {
+			this(filenamePrefix, 8192, 1, DEFAULT_MAX_STALE_MILLIS);
+		}
+
+		/**
+		 * @param filenamePrefix
+		 *            文件名前缀
+		 * @param bufferSize
+		 *            所有分段合计的缓冲大小
+		 * @param stripes
+		 *            分段个数
+		 * @param maxStaleMillis
+		 *            每个分段中数据允许停留的最长时间，0 表示不限制
+		 */
+		public SegmentedLoggingConsumer(String filenamePrefix, int bufferSize, int stripes, long maxStaleMillis)
+				throws IOException {
+			this(filenamePrefix, bufferSize, stripes, maxStaleMillis,
+					processSegmentName(SEGMENT_SEQUENCE.getAndIncrement()));
+		}
+
+		private SegmentedLoggingConsumer(String filenamePrefix, int bufferSize, int stripes, long maxStaleMillis,
+				final String segmentName) throws IOException {
+			super(new LoggingFileWriterFactory() {
+				@Override
+				public LoggingFileWriter getFileWriter(String fileName, String scheduleFileName) throws IOException {
+					return new ChannelLoggingFileWriter(scheduleFileName, scheduleFileName + "." + segmentName, false);
+				}
+			}, filenamePrefix, bufferSize, stripes, maxStaleMillis);
+			setPathSuffix("." + segmentName);
+		}
+
+		/**
+		 * @return 主机名-进程号-序号，主机名中的非字母数字字符替换为下划线
+		 */
+		static String processSegmentName(int sequence) {
+			// RuntimeMXBean 的名称格式为 pid@hostname
+			String name = ManagementFactory.getRuntimeMXBean().getName();
+			int at = name.indexOf('@');
+			String pid = at > 0 ? name.substring(0, at) : name;
+			String host = at > 0 ? name.substring(at + 1) : "localhost";
+			return host.replaceAll("[^A-Za-z0-9_]", "_") + "-" + pid + "-" + sequence;
+		}
+	}
+
 	interface LoggingFileWriter {
 		boolean isValid(final String fileName);
 
-		boolean write(final StringBuilder sb);
+		/**
+		 * 按顺序写入所有缓冲区，多个缓冲区时使用聚集写
+		 *
+		 * 写入失败时抛出异常，各缓冲区的 position 前进到已经写入文件的位置，调用方据此从断点重试
+		 */
+		boolean write(final ByteBuffer[] buffers);
 
 		void close();
 	}
 
 	interface LoggingFileWriterFactory {
-		LoggingFileWriter getFileWriter(final String fileName, final String scheduleFileName)
-				throws FileNotFoundException;
+		LoggingFileWriter getFileWriter(final String fileName, final String scheduleFileName) throws IOException;
 	}
 
-	static class InnerLoggingConsumer implements Consumer {
+	static class InnerLoggingConsumer implements Consumer, EncodedSink {
+
+		// 默认最多缓冲的字节数，所有分段合计
+		final static long DEFAULT_MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+
+		// 简化构造函数使用的数据最长停留时间
+		final static long DEFAULT_MAX_STALE_MILLIS = 1000;
+
+		private final static long DEFAULT_BLOCK_TIMEOUT_MILLIS = 1000;
+		private final static long DEFAULT_MAX_SPILL_BYTES = 1024L * 1024 * 1024;
+		// BLOCK 策略下等待期间尝试刷新的间隔
+		private final static long BLOCK_RETRY_MILLIS = 50;
+		// 每多少个事件抽样记录一次等锁时间
+		private final static int LOCK_WAIT_SAMPLE_INTERVAL = 64;
+
+		/**
+		 * 一个分段缓冲区。buffer 接收新事件，pending 保存已经从 buffer 换出、等待写入文件的数据
+		 */
+		private static class Stripe {
+			private ByteArrayBuffer buffer;
+			private ByteArrayBuffer pending;
+			// buffer 中第一条记录的写入时间，buffer 为空时为 0
+			private long firstWriteNanos;
+
+			Stripe(int capacity) {
+				this.buffer = new ByteArrayBuffer(capacity);
+				this.pending = new ByteArrayBuffer(capacity);
+			}
 
-		private final static int BUFFER_LIMITATION = 1 * 1024 * 1024 * 1024; // 1G
+			int bufferedBytes() {
+				return buffer.length() + pending.length();
+			}
+		}
 
-		private final ObjectMapper jsonMapper;
+		private final JsonEventEncoder encoder;
 		private final String filenamePrefix;
-		private final StringBuilder messageBuffer;
-		private final int bufferSize;
-		private final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+		private final Stripe[] stripes;
+		private final int stripeBufferSize;
+		private final long maxStaleNanos;
+		private final ScheduledExecutorService flushExecutor;
+		private final ScheduledFuture<?> flushTask;
+		private RollingPolicy rollingPolicy = RollingPolicy.daily();
+		private RollingFile rollingFile;
+		private String pathSuffix = "";
+		private Housekeeper housekeeper;
+
+		private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+		private volatile int stripeLimitation;
+		private volatile long blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BLOCK_TIMEOUT_MILLIS);
+		private volatile SpillFile spillFile;
+
+		private final LongAdder droppedCount = new LongAdder();
+		private final LongAdder droppedBytes = new LongAdder();
+		private final LongAdder spilledCount = new LongAdder();
+		private final LongAdder spilledBytes = new LongAdder();
+		private final LongAdder blockedCount = new LongAdder();
+		private final LongAdder writtenBytes = new LongAdder();
+		private final LongAdder writeFailedCount = new LongAdder();
+		private final LatencyHistogram flushLatency = new LatencyHistogram();
+		private final LatencyHistogram writeLatency = new LatencyHistogram();
+		private final LatencyHistogram lockWaitLatency = new LatencyHistogram();
+		// 是否已经有业务线程因为缓冲区写满在刷新
+		private final AtomicBoolean producerFlushing = new AtomicBoolean(false);
+
+		private final Runnable backgroundFlush = new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
 
 		private final LoggingFileWriterFactory fileWriterFactory;
 		private LoggingFileWriter fileWriter;
 
 		public InnerLoggingConsumer(LoggingFileWriterFactory fileWriterFactory, String filenamePrefix, int bufferSize)
 				throws IOException {
+			this(fileWriterFactory, filenamePrefix, bufferSize, 1, 0);
+		}
+
+		/**
+		 * @param stripes
+		 *            分段缓冲区的个数，业务线程按线程 ID 分配到不同的分段，减少锁竞争
+		 * @param maxStaleMillis
+		 *            分段中最早一条记录允许停留的最长时间，超过后由共用的后台刷新线程写入文件，0 表示不限制。
+		 *            缓冲区达到 bufferSize 时仍由写入线程立即刷新
+		 */
+		public InnerLoggingConsumer(LoggingFileWriterFactory fileWriterFactory, String filenamePrefix, int bufferSize,
+				int stripes, long maxStaleMillis) throws IOException {
+			this(fileWriterFactory, filenamePrefix, bufferSize, stripes, maxStaleMillis, null);
+		}
+
+		/**
+		 * @param flushExecutor
+		 *            执行超时刷新和 BLOCK 策略下刷新的线程，null 表示使用共用的后台刷新线程
+		 */
+		InnerLoggingConsumer(LoggingFileWriterFactory fileWriterFactory, String filenamePrefix, int bufferSize,
+				int stripes, long maxStaleMillis, ScheduledExecutorService flushExecutor) throws IOException {
+			if (stripes < 1) {
+				throw new IllegalArgumentException("stripes must be positive.");
+			}
 			this.fileWriterFactory = fileWriterFactory;
 			this.filenamePrefix = filenamePrefix;
-			this.jsonMapper = getJsonObjectMapper();
-			this.messageBuffer = new StringBuilder(bufferSize);
-			this.bufferSize = bufferSize;
+			this.flushExecutor = flushExecutor;
+			this.rollingFile = new RollingFile(filenamePrefix, rollingPolicy);
+			this.encoder = new JsonEventEncoder();
+			this.stripeBufferSize = Math.max(bufferSize / stripes, 1);
+			this.stripeLimitation = stripeLimitation(DEFAULT_MAX_BUFFERED_BYTES, stripes);
+			this.maxStaleNanos = TimeUnit.MILLISECONDS.toNanos(maxStaleMillis);
+			this.stripes = new Stripe[stripes];
+			for (int i = 0; i < stripes; i++) {
+				this.stripes[i] = new Stripe(stripeBufferSize);
+			}
+
+			if (maxStaleMillis > 0) {
+				// 检查周期取停留时间的四分之一，数据最多停留 maxStaleMillis 再加一个检查周期
+				this.flushTask = FlushScheduler.schedule(flushExecutor, new Runnable() {
+					@Override
+					public void run() {
+						flushStale();
+					}
+				}, maxStaleMillis / 4);
+			} else {
+				this.flushTask = null;
+			}
+		}
+
+		private static int stripeLimitation(long maxBufferedBytes, int stripes) {
+			return (int) Math.min(Math.max(maxBufferedBytes / stripes, 1), Integer.MAX_VALUE / 2);
+		}
+
+		/**
+		 * 设置日志文件的滚动策略，默认按天滚动，下一次写入时生效
+		 */
+		public synchronized void setRollingPolicy(RollingPolicy rollingPolicy) {
+			this.rollingPolicy = rollingPolicy;
+			this.rollingFile = new RollingFile(filenamePrefix, pathSuffix, rollingPolicy);
+			if (housekeeper != null) {
+				housekeeper.setRollingPolicy(rollingPolicy);
+			}
+		}
+
+		/**
+		 * 设置文件写入者在滚动文件名之后追加的后缀，按大小滚动时读取实际写入的文件的大小
+		 */
+		synchronized void setPathSuffix(String pathSuffix) {
+			this.pathSuffix = pathSuffix;
+			this.rollingFile = new RollingFile(filenamePrefix, pathSuffix, rollingPolicy);
+		}
+
+		/**
+		 * 设置已滚动日志文件的压缩与保留策略，由后台整理线程执行，null 表示不整理
+		 */
+		public synchronized void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+			if (housekeeper != null) {
+				housekeeper.close();
+				housekeeper = null;
+			}
+			if (retentionPolicy != null) {
+				housekeeper = new Housekeeper(filenamePrefix, rollingPolicy, retentionPolicy);
+			}
+		}
+
+		/**
+		 * 设置写入受阻、缓冲区达到上限时的处理策略
+		 *
+		 * @param overflowPolicy
+		 *            处理策略，SPILL 策略默认使用 filenamePrefix.spill 作为溢出文件
+		 * @param maxBufferedBytes
+		 *            所有分段合计最多缓冲的字节数
+		 */
+		public void setOverflowPolicy(OverflowPolicy overflowPolicy, long maxBufferedBytes) throws IOException {
+			if (maxBufferedBytes < 1) {
+				throw new IllegalArgumentException("max buffered bytes must be positive.");
+			}
+			if (overflowPolicy == OverflowPolicy.SPILL && spillFile == null) {
+				setSpillFile(filenamePrefix + ".spill", DEFAULT_MAX_SPILL_BYTES);
+			}
+			this.stripeLimitation = stripeLimitation(maxBufferedBytes, stripes.length);
+			this.overflowPolicy = overflowPolicy;
+		}
+
+		/**
+		 * 设置 BLOCK 策略下业务线程最多等待的时间，超时后丢弃该事件
+		 */
+		public void setBlockTimeout(long timeoutMillis) {
+			this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		}
+
+		/**
+		 * 设置 SPILL 策略使用的溢出文件，文件中遗留的数据会在下一次写入时写回日志文件
+		 *
+		 * @param spillFileName
+		 *            溢出文件路径，多个进程不能共用同一个溢出文件
+		 * @param maxSpillBytes
+		 *            溢出文件的大小上限，超过后丢弃新的事件
+		 */
+		public synchronized void setSpillFile(String spillFileName, long maxSpillBytes) throws IOException {
+			if (spillFile != null) {
+				spillFile.close();
+			}
+			this.spillFile = new SpillFile(spillFileName, maxSpillBytes);
+		}
+
+		/**
+		 * @return 因缓冲区达到上限被丢弃的事件数
+		 */
+		public long getDroppedCount() {
+			return droppedCount.sum();
+		}
+
+		/**
+		 * @return DROP_OLDEST 策略丢弃的已编码字节数，丢弃新事件时事件还未编码，不计入
+		 */
+		public long getDroppedBytes() {
+			return droppedBytes.sum();
+		}
+
+		/**
+		 * @return 写入溢出文件的事件数
+		 */
+		public long getSpilledCount() {
+			return spilledCount.sum();
+		}
+
+		public long getSpilledBytes() {
+			return spilledBytes.sum();
+		}
+
+		/**
+		 * @return 当前所有分段中尚未写入文件的字节数，不加锁读取，只是近似值
+		 */
+		public long getBufferedBytes() {
+			long bytes = 0;
+			for (Stripe stripe : stripes) {
+				bytes += stripe.bufferedBytes();
+			}
+			return bytes;
+		}
+
+		/**
+		 * 把消费者的指标填入快照
+		 */
+		TrackMetrics metrics(long acceptedCount, long rejectedCount, long sampledOutCount,
+				TrackMetrics.ProfileCache profileCache) {
+			return new TrackMetrics(acceptedCount, rejectedCount, sampledOutCount, getBufferedBytes(),
+					writtenBytes.sum(), writeFailedCount.sum(), droppedCount.sum(), spilledCount.sum(),
+					blockedCount.sum(), flushLatency.snapshot(), writeLatency.snapshot(), lockWaitLatency.snapshot(),
+					profileCache);
+		}
+
+		/**
+		 * @return BLOCK 策略下业务线程等待的次数
+		 */
+		public long getBlockedCount() {
+			return blockedCount.sum();
+		}
+
+		/**
+		 * @return 成功写入文件的字节数
+		 */
+		public long getWrittenBytes() {
+			return writtenBytes.sum();
+		}
+
+		/**
+		 * @return 写入文件失败的次数
+		 */
+		public long getWriteFailedCount() {
+			return writeFailedCount.sum();
+		}
+
+		TrackMetrics.Latency flushLatency() {
+			return flushLatency.snapshot();
+		}
+
+		TrackMetrics.Latency writeLatency() {
+			return writeLatency.snapshot();
+		}
+
+		TrackMetrics.Latency lockWaitLatency() {
+			return lockWaitLatency.snapshot();
+		}
+
+		@Override
+		public void send(Map<String, Object> message) {
+			append(message, null, 0, 0);
 		}
 
 		@Override
-		public synchronized void send(Map<String, Object> message) {
-			if (messageBuffer.length() < BUFFER_LIMITATION) {
+		public void sendEncoded(byte[] line, int offset, int length) {
+			append(null, line, offset, length);
+		}
+
+		/**
+		 * 写入一个事件，message 为 null 时写入已经编码好的一行
+		 */
+		private void append(Map<String, Object> message, byte[] line, int offset, int length) {
+			final Stripe stripe = currentStripe();
+			final boolean needFlush;
+			// 抽样记录等锁时间，避免每个事件都调用 nanoTime
+			final long lockStart = ThreadLocalRandom.current().nextInt(LOCK_WAIT_SAMPLE_INTERVAL) == 0
+					? System.nanoTime() : 0;
+			synchronized (stripe) {
+				if (lockStart != 0) {
+					lockWaitLatency.record(System.nanoTime() - lockStart);
+				}
+				if (stripe.bufferedBytes() >= stripeLimitation && !makeRoom(stripe)) {
+					droppedCount.increment();
+					return;
+				}
+				if (message != null) {
+					encoder.encode(message, stripe.buffer);
+				} else {
+					stripe.buffer.write(line, offset, length);
+				}
+
+				if (stripe.firstWriteNanos == 0) {
+					stripe.firstWriteNanos = System.nanoTime();
+				}
+				needFlush = stripe.buffer.length() >= stripeBufferSize;
+			}
+
+			// 已经有业务线程在刷新时直接返回，不在消费者的锁上排队，缓冲区由正在进行的刷新或者下一次写满时写入
+			if (needFlush && producerFlushing.compareAndSet(false, true)) {
 				try {
-					jsonMapper.setSerializationInclusion(Include.NON_NULL);  
-					messageBuffer.append(jsonMapper.writeValueAsString(message));
-					messageBuffer.append("\n");
-				} catch (JsonProcessingException e) {
-					throw new RuntimeException("fail to process json", e);
+					final long flushStart = System.nanoTime();
+					synchronized (this) {
+						// 后台刷新线程或者调用方正在刷新时需要等待，计入等锁时间
+						lockWaitLatency.record(System.nanoTime() - flushStart);
+						flush();
+					}
+				} catch (RuntimeException e) {
+					// 写入失败的数据保留在缓冲区中，由后续的刷新重试，不影响业务线程
+					loger.error("fail to flush logging buffer.", e);
+				} finally {
+					producerFlushing.set(false);
 				}
-			} else {
-				throw new RuntimeException("logging buffer exceeded the allowed limitation.");
 			}
+		}
 
-			if (messageBuffer.length() >= bufferSize) {
-				flush();
+		/**
+		 * 缓冲区达到上限时按照策略腾出空间，调用时持有分段的锁
+		 *
+		 * @return 是否可以写入当前事件
+		 */
+		private boolean makeRoom(Stripe stripe) {
+			switch (overflowPolicy) {
+			case BLOCK:
+				return awaitRoom(stripe);
+			case DROP_OLDEST:
+				return dropOldest(stripe);
+			case SPILL:
+				return spill(stripe);
+			default:
+				return false;
+			}
+		}
+
+		private boolean awaitRoom(Stripe stripe) {
+			blockedCount.increment();
+			final long deadline = System.nanoTime() + blockTimeoutNanos;
+			while (stripe.bufferedBytes() >= stripeLimitation) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				// 持有分段锁时不能直接刷新，交给后台刷新线程，刷新成功后唤醒
+				FlushScheduler.execute(flushExecutor, backgroundFlush);
+				try {
+					stripe.wait(Math.max(Math.min(TimeUnit.NANOSECONDS.toMillis(remaining), BLOCK_RETRY_MILLIS), 1));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * 从 buffer 开头按整行丢弃最早的记录，直到使用量降到上限的四分之三
+		 */
+		private boolean dropOldest(Stripe stripe) {
+			final int target = stripeLimitation - stripeLimitation / 4 - stripe.pending.length();
+			final int excess = stripe.buffer.length() - Math.max(target, 0);
+			final byte[] data = stripe.buffer.array();
+			final int length = stripe.buffer.length();
+			int end = 0;
+			int lines = 0;
+			while (end < length && end < excess) {
+				while (data[end++] != '\n') {
+				}
+				lines++;
+			}
+			if (lines > 0) {
+				stripe.buffer.discard(end);
+				droppedCount.add(lines);
+				droppedBytes.add(end);
+				if (stripe.buffer.length() == 0) {
+					stripe.firstWriteNanos = 0;
+				}
+			}
+			return stripe.bufferedBytes() < stripeLimitation;
+		}
+
+		/**
+		 * 把 buffer 中的数据整段写入溢出文件
+		 */
+		private boolean spill(Stripe stripe) {
+			final SpillFile spillFile = this.spillFile;
+			if (spillFile == null || stripe.buffer.length() == 0) {
+				return false;
+			}
+			final byte[] data = stripe.buffer.array();
+			final int length = stripe.buffer.length();
+			if (!spillFile.append(stripe.buffer.toByteBuffer())) {
+				return false;
+			}
+			int lines = 0;
+			for (int i = 0; i < length; i++) {
+				if (data[i] == '\n') {
+					lines++;
+				}
+			}
+			spilledCount.add(lines);
+			spilledBytes.add(length);
+			stripe.buffer.reset();
+			stripe.firstWriteNanos = 0;
+			return stripe.bufferedBytes() < stripeLimitation;
+		}
+
+		private Stripe currentStripe() {
+			if (stripes.length == 1) {
+				return stripes[0];
 			}
+			return stripes[(int) (Thread.currentThread().getId() % stripes.length)];
 		}
 
-		private String constructFileName(Date now) {
-			return filenamePrefix + "." + simpleDateFormat.format(now);
+		/**
+		 * 由后台刷新线程调用，有分段超过最长停留时间、上一次写入失败或者溢出文件中有数据时刷新
+		 */
+		private void flushStale() {
+			final long now = System.nanoTime();
+			boolean stale = spillFile != null && spillFile.hasData();
+			for (Stripe stripe : stripes) {
+				if (stale) {
+					break;
+				}
+				synchronized (stripe) {
+					stale = (stripe.firstWriteNanos != 0 && now - stripe.firstWriteNanos >= maxStaleNanos)
+							|| stripe.pending.length() > 0;
+				}
+			}
+			if (stale) {
+				flush();
+			}
 		}
 
+		/**
+		 * 将所有分段中的数据合并为一次写入。分段中的记录都是完整的行，合并后仍然是完整的行
+		 */
 		@Override
 		public synchronized void flush() {
-			if (messageBuffer.length() == 0) {
-				return;
+			// 上一次写入失败时，写完遗留的 pending 后 buffer 中可能还有数据，需要再写一轮
+			while (flushOnce()) {
 			}
+		}
 
-			String filename = constructFileName(new Date());
+		/**
+		 * @return 写入成功并且还有分段的 buffer 因为 pending 未写完而没有换出
+		 */
+		private boolean flushOnce() {
+			// 上一次写入失败时 pending 中仍有数据，这一轮只重试遗留的 pending，不换出新的 buffer，
+			// 保证重试的是同一批数据，并且同一分段内的顺序不变。pending 只在持有消费者的锁时修改
+			boolean retry = false;
+			for (Stripe stripe : stripes) {
+				retry |= stripe.pending.length() > 0;
+			}
+			int count = 0;
+			boolean carried = false;
+			for (Stripe stripe : stripes) {
+				synchronized (stripe) {
+					if (retry) {
+						carried |= stripe.buffer.length() > 0;
+					} else if (stripe.buffer.length() > 0) {
+						ByteArrayBuffer full = stripe.buffer;
+						stripe.buffer = stripe.pending;
+						stripe.pending = full;
+						stripe.firstWriteNanos = 0;
+					}
+				}
+				if (stripe.pending.length() > 0) {
+					count++;
+				}
+			}
+
+			final SpillFile spillFile = this.spillFile;
+			final boolean spilled = spillFile != null && spillFile.hasData();
+			if (count == 0 && !spilled) {
+				return false;
+			}
+			final long start = System.nanoTime();
+
+			String filename = rollingFile.fileName(System.currentTimeMillis());
 
 			if (fileWriter != null && !fileWriter.isValid(filename)) {
 				fileWriter.close();
@@ -559,22 +1247,99 @@ public class Track {
 			if (fileWriter == null) {
 				try {
 					fileWriter = this.fileWriterFactory.getFileWriter(filenamePrefix, filename);
-				} catch (FileNotFoundException e) {
+				} catch (IOException e) {
 					throw new RuntimeException(e);
 				}
 			}
 
-			if (fileWriter.write(messageBuffer)) {
-				messageBuffer.setLength(0);
+			// 溢出文件中的数据晚于遗留的 pending，早于新换出的 buffer
+			if (spilled && !retry) {
+				rollingFile.written(spillFile.drainTo(fileWriter));
+			}
+			if (count > 0) {
+				ByteBuffer[] buffers = new ByteBuffer[count];
+				int index = 0;
+				long bytes = 0;
+				for (Stripe stripe : stripes) {
+					if (stripe.pending.length() > 0) {
+						buffers[index++] = stripe.pending.toByteBuffer();
+						bytes += stripe.pending.length();
+					}
+				}
+
+				final long writeStart = System.nanoTime();
+				final boolean written;
+				try {
+					written = fileWriter.write(buffers);
+				} catch (RuntimeException e) {
+					// 写入者失败时通常抛出异常，同样计入写入耗时和失败次数
+					writeLatency.record(System.nanoTime() - writeStart);
+					writeFailedCount.increment();
+					discardWritten(buffers);
+					throw e;
+				}
+				writeLatency.record(System.nanoTime() - writeStart);
+				if (!written) {
+					writeFailedCount.increment();
+					discardWritten(buffers);
+					return false;
+				}
+				rollingFile.written(bytes);
+				writtenBytes.add(bytes);
+				for (Stripe stripe : stripes) {
+					synchronized (stripe) {
+						stripe.pending.reset();
+						// 唤醒 BLOCK 策略下等待的业务线程
+						stripe.notifyAll();
+					}
+				}
+			}
+			if (spilled && retry) {
+				rollingFile.written(spillFile.drainTo(fileWriter));
+			}
+			flushLatency.record(System.nanoTime() - start);
+			return carried;
+		}
+
+		/**
+		 * 写入失败后从 pending 中去掉已经写入文件的部分，重试时从断点继续，避免重复写入
+		 */
+		private void discardWritten(ByteBuffer[] buffers) {
+			int index = 0;
+			long bytes = 0;
+			for (Stripe stripe : stripes) {
+				if (stripe.pending.length() > 0) {
+					int written = buffers[index++].position();
+					if (written > 0) {
+						synchronized (stripe) {
+							stripe.pending.discard(written);
+							stripe.notifyAll();
+						}
+						bytes += written;
+					}
+				}
 			}
+			rollingFile.written(bytes);
+			writtenBytes.add(bytes);
 		}
 
 		@Override
 		public synchronized void close() {
+			if (flushTask != null) {
+				flushTask.cancel(false);
+			}
+			if (housekeeper != null) {
+				housekeeper.close();
+			}
 			flush();
 
-			fileWriter.close();
-			fileWriter = null;
+			if (fileWriter != null) {
+				fileWriter.close();
+				fileWriter = null;
+			}
+			if (spillFile != null) {
+				spillFile.close();
+			}
 		}
 	}
 
@@ -583,6 +1348,216 @@ public class Track {
 
 		this.superProperties = new ConcurrentHashMap<String, Object>();
 		clearSuperProperties();
+		registerMBean();
+	}
+
+	/**
+	 * 注册 JMX 接口，失败时只记录日志，不影响埋点
+	 */
+	private void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(
+					"com.yonyou.cloud.track:type=Track,name=track-" + INSTANCE_SEQUENCE.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer()
+					.registerMBean(new StandardMBean(new TrackMetricsMXBean() {
+						@Override
+						public long getAcceptedCount() {
+							return acceptedCount.sum();
+						}
+
+						@Override
+						public long getRejectedCount() {
+							return rejectedCount.sum();
+						}
+
+						@Override
+						public long getSampledOutCount() {
+							return sampledOutCount.sum();
+						}
+
+						@Override
+						public long getBufferedBytes() {
+							InnerLoggingConsumer consumer = loggingConsumer();
+							return consumer == null ? 0 : consumer.getBufferedBytes();
+						}
+
+						@Override
+						public long getWrittenBytes() {
+							InnerLoggingConsumer consumer = loggingConsumer();
+							return consumer == null ? 0 : consumer.getWrittenBytes();
+						}
+
+						@Override
+						public long getWriteFailedCount() {
+							InnerLoggingConsumer consumer = loggingConsumer();
+							return consumer == null ? 0 : consumer.getWriteFailedCount();
+						}
+
+						@Override
+						public long getDroppedCount() {
+							InnerLoggingConsumer consumer = loggingConsumer();
+							return consumer == null ? 0 : consumer.getDroppedCount();
+						}
+
+						@Override
+						public long getSpilledCount() {
+							InnerLoggingConsumer consumer = loggingConsumer();
+							return consumer == null ? 0 : consumer.getSpilledCount();
+						}
+
+						@Override
+						public long getBlockedCount() {
+							InnerLoggingConsumer consumer = loggingConsumer();
+							return consumer == null ? 0 : consumer.getBlockedCount();
+						}
+
+						@Override
+						public TrackMetrics.Latency getFlushLatency() {
+							InnerLoggingConsumer consumer = loggingConsumer();
+							return consumer == null ? TrackMetrics.EMPTY_LATENCY : consumer.flushLatency();
+						}
+
+						@Override
+						public TrackMetrics.Latency getWriteLatency() {
+							InnerLoggingConsumer consumer = loggingConsumer();
+							return consumer == null ? TrackMetrics.EMPTY_LATENCY : consumer.writeLatency();
+						}
+
+						@Override
+						public TrackMetrics.Latency getLockWaitLatency() {
+							InnerLoggingConsumer consumer = loggingConsumer();
+							return consumer == null ? TrackMetrics.EMPTY_LATENCY : consumer.lockWaitLatency();
+						}
+
+						@Override
+						public TrackMetrics.ProfileCache getProfileCache() {
+							return profileCacheMetrics();
+						}
+					}, TrackMetricsMXBean.class, true), name);
+			this.objectName = name;
+		} catch (Exception e) {
+			loger.warn("fail to register track mbean.", e);
+		}
+	}
+
+	/**
+	 * 开启 profile 操作的合并，窗口内同一用户的 profile_increment 累加、profile_set 后写覆盖前写、
+	 * profile_append 拼接列表，每个窗口只输出一条记录
+	 *
+	 * @param windowMillis
+	 *            合并窗口，0 表示关闭合并，关闭时立即输出合并中的记录
+	 * @param maxPendingUsers
+	 *            窗口内最多合并的用户数，超过后提前输出
+	 */
+	public synchronized void setProfileCoalescing(long windowMillis, int maxPendingUsers) {
+		if (profileCoalescer != null) {
+			profileCoalescer.close();
+			profileCoalescer = null;
+		}
+		if (windowMillis > 0) {
+			if (maxPendingUsers < 1) {
+				throw new IllegalArgumentException("max pending users must be positive.");
+			}
+			profileCoalescer = new ProfileCoalescer(this, windowMillis, maxPendingUsers);
+		}
+	}
+
+	/**
+	 * 开启用户属性缓存，跳过与本进程上一次发送的取值相同的 profile_set 属性，以及已经设置过的
+	 * profile_set_once 属性。其他进程也修改同一用户属性时不要开启
+	 *
+	 * @param maxEntries
+	 *            最多缓存的用户数，0 表示关闭缓存
+	 * @param maxBytes
+	 *            缓存估算占用的最大字节数
+	 */
+	public synchronized void setProfileCache(int maxEntries, long maxBytes) {
+		if (maxEntries > 0) {
+			if (maxBytes < 1) {
+				throw new IllegalArgumentException("max bytes must be positive.");
+			}
+			profileStateCache = new ProfileStateCache(maxEntries, maxBytes);
+		} else {
+			profileStateCache = null;
+		}
+	}
+
+	/**
+	 * 设置某个事件的采样或限流方式，在校验和组装事件之前执行
+	 *
+	 * @param eventName
+	 *            事件名
+	 * @param sampler
+	 *            采样方式，null 表示取消该事件的采样
+	 */
+	public synchronized void setSampler(String eventName, Sampler sampler) {
+		if (sampler == null) {
+			samplers.remove(eventName);
+		} else {
+			samplers.put(eventName, sampler);
+		}
+		samplingEnabled = !samplers.isEmpty();
+	}
+
+	/**
+	 * @return 事件的采样率，丢弃时返回 0，没有配置采样时返回 1
+	 */
+	private double sample(String eventName, Map<String, Object> properties, TrackEvent trackEvent) {
+		if (!samplingEnabled || eventName == null) {
+			return 1;
+		}
+		final Sampler sampler = samplers.get(eventName);
+		if (sampler == null) {
+			return 1;
+		}
+		Object value = null;
+		if (sampler.getProperty() != null) {
+			if (trackEvent != null) {
+				value = trackEvent.get(sampler.getProperty());
+			} else if (properties != null) {
+				value = properties.get(sampler.getProperty());
+			}
+		}
+		double rate = sampler.sample(value);
+		if (rate <= 0) {
+			sampledOutCount.increment();
+		}
+		return rate;
+	}
+
+	/**
+	 * @return 当前的运行指标快照
+	 */
+	public TrackMetrics getMetrics() {
+		final TrackMetrics.ProfileCache profileCache = profileCacheMetrics();
+		final InnerLoggingConsumer loggingConsumer = loggingConsumer();
+		if (loggingConsumer != null) {
+			return loggingConsumer.metrics(acceptedCount.sum(), rejectedCount.sum(), sampledOutCount.sum(),
+					profileCache);
+		}
+		return new TrackMetrics(acceptedCount.sum(), rejectedCount.sum(), sampledOutCount.sum(), 0, 0, 0, 0, 0, 0,
+				TrackMetrics.EMPTY_LATENCY, TrackMetrics.EMPTY_LATENCY, TrackMetrics.EMPTY_LATENCY, profileCache);
+	}
+
+	private TrackMetrics.ProfileCache profileCacheMetrics() {
+		final ProfileStateCache cache = this.profileStateCache;
+		return cache == null ? TrackMetrics.EMPTY_PROFILE_CACHE
+				: new TrackMetrics.ProfileCache(cache.hitCount.sum(), cache.missCount.sum(),
+						cache.evictionCount.sum(), cache.size(), cache.bytes());
+	}
+
+	/**
+	 * @return 文件日志消费者，其他消费者没有写文件相关的指标，返回 null
+	 */
+	private InnerLoggingConsumer loggingConsumer() {
+		return consumer instanceof InnerLoggingConsumer ? (InnerLoggingConsumer) consumer : null;
+	}
+
+	/**
+	 * @return 注册的 JMX ObjectName，注册失败时为 null
+	 */
+	public ObjectName getObjectName() {
+		return objectName;
 	}
 
 	/**
@@ -599,19 +1574,29 @@ public class Track {
 	 * @param superPropertiesMap
 	 *            一个或多个公共属性
 	 */
-	public void registerSuperProperties(Map<String, Object> superPropertiesMap) {
+	public synchronized void registerSuperProperties(Map<String, Object> superPropertiesMap) {
 		for (Map.Entry<String, Object> item : superPropertiesMap.entrySet()) {
 			this.superProperties.put(item.getKey(), item.getValue());
 		}
+		resetSuperProperties();
 	}
 
 	/**
 	 * 清除公共属性
 	 */
-	public void clearSuperProperties() {
+	public synchronized void clearSuperProperties() {
 		this.superProperties.clear();
 		this.superProperties.put("$lib", "Java");
 		this.superProperties.put("$lib_version", SDK_VERSION);
+		resetSuperProperties();
+	}
+
+	/**
+	 * 公共属性变化后重建预编码的公共属性快照和 lib 属性
+	 */
+	private void resetSuperProperties() {
+		this.superPropertiesSnapshot = SuperPropertiesSnapshot.of(this.superProperties, superPropertiesWriter);
+		resetLibProperties();
 	}
 
 //	/**
@@ -896,10 +1881,44 @@ public class Track {
 		addEvent(distinctId, isLoginId, null, "profile_delete", null, new HashMap<String, Object>());
 	}
 
+	/**
+	 * 开始构造一个事件，属性设置完后调用 {@link TrackEvent#emit()} 发送
+	 *
+	 * <pre>
+	 * track.event("Checkout").put("amount", 12.5).put("items", 3).emit();
+	 * </pre>
+	 *
+	 * 同一线程内返回的是同一个构造器，必须 emit 之后再构造下一个事件
+	 *
+	 * @param eventName
+	 *            事件名称
+	 * @return 事件构造器
+	 */
+	public TrackEvent event(String eventName) {
+		return event(eventName, "track");
+	}
+
+	/**
+	 * 开始构造一个指定业务类型的事件，与 {@link #track(String, String, Map)} 对应
+	 *
+	 * @param eventName
+	 *            事件名称
+	 * @param bizType
+	 *            事件业务类型
+	 * @return 事件构造器
+	 */
+	public TrackEvent event(String eventName, String bizType) {
+		return eventBuilders.get().reset(bizType, eventName);
+	}
+
 	/**
 	 * 立即发送缓存中的所有日志
 	 */
 	public void flush() {
+		final ProfileCoalescer coalescer = this.profileCoalescer;
+		if (coalescer != null) {
+			coalescer.flush();
+		}
 		this.consumer.flush();
 	}
 
@@ -907,11 +1926,19 @@ public class Track {
 	 * 停止SensorsDataAPI所有线程，API停止前会清空所有本地数据
 	 */
 	public void shutdown() {
+		setProfileCoalescing(0, 0);
 		this.consumer.close();
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception e) {
+				loger.warn("fail to unregister track mbean.", e);
+			}
+			objectName = null;
+		}
 	}
 
-	@SuppressWarnings("unused")
-	private static class HttpConsumer {
+	static class HttpConsumer {
 
 		@SuppressWarnings("serial")
 		static class HttpConsumerException extends Exception {
@@ -923,17 +1950,14 @@ public class Track {
 				this.httpContent = httpContent;
 			}
 
-			@SuppressWarnings("unused")
 			String getSendingData() {
 				return sendingData;
 			}
 
-			@SuppressWarnings("unused")
 			int getHttpStatusCode() {
 				return httpStatusCode;
 			}
 
-			@SuppressWarnings("unused")
 			String getHttpContent() {
 				return httpContent;
 			}
@@ -943,32 +1967,53 @@ public class Track {
 			final String httpContent;
 		}
 
-		@SuppressWarnings("unused")
 		HttpConsumer(String serverUrl, Map<String, String> httpHeaders) {
+			this(new DefaultHttpClient(), serverUrl, httpHeaders);
+		}
+
+		/**
+		 * @param httpClient
+		 *            发送使用的 HttpClient，多个请求共用，使用连接池时可以并发发送
+		 */
+		HttpConsumer(HttpClient httpClient, String serverUrl, Map<String, String> httpHeaders) {
+			this.httpClient = httpClient;
 			this.serverUrl = serverUrl;
 			this.httpHeaders = httpHeaders;
 
 			this.compressData = true;
 		}
 
-		@SuppressWarnings("unused")
 		HttpResponse consume(final String data) throws IOException, HttpConsumerException {
-			HttpResponse response = new DefaultHttpClient().execute(getHttpRequest(data));
+			byte[] bytes = data.getBytes(Charset.forName("UTF-8"));
+			return consume(bytes, bytes.length);
+		}
+
+		/**
+		 * 发送一批 JSON 数组格式的数据，响应内容在返回前读完，连接可以归还连接池
+		 */
+		HttpResponse consume(final byte[] data, final int length) throws IOException, HttpConsumerException {
+			HttpResponse response = httpClient.execute(getHttpRequest(data, length));
 
 			int httpStatusCode = response.getStatusLine().getStatusCode();
 			if (httpStatusCode < 200 || httpStatusCode >= 300) {
 				String httpContent = EntityUtils.toString(response.getEntity(), "UTF-8");
 				throw new HttpConsumerException(String.format("Unexpected response %d from Sensors " + "Analytics: %s",
-						httpStatusCode, httpContent), data, httpStatusCode, httpContent);
+						httpStatusCode, httpContent), new String(data, 0, length, "UTF-8"), httpStatusCode,
+						httpContent);
 			}
+			EntityUtils.consume(response.getEntity());
 
 			return response;
 		}
 
-		HttpUriRequest getHttpRequest(final String data) throws IOException {
+		HttpUriRequest getHttpRequest(final byte[] data, final int length) throws IOException {
 			HttpPost httpPost = new HttpPost(this.serverUrl);
 
-			httpPost.setEntity(getHttpEntry(data));
+			if (gzipBodyLevel >= 0) {
+				httpPost.setEntity(new GzipBodyEntity(data, length, gzipBodyLevel));
+			} else {
+				httpPost.setEntity(getHttpEntry(data, length));
+			}
 			httpPost.addHeader("User-Agent", "SensorsAnalytics Java SDK");
 
 			if (this.httpHeaders != null) {
@@ -980,43 +2025,72 @@ public class Track {
 			return httpPost;
 		}
 
-		UrlEncodedFormEntity getHttpEntry(final String data) throws IOException {
-			byte[] bytes = data.getBytes(Charset.forName("UTF-8"));
+		/**
+		 * 请求体改为 gzip 压缩的 JSON，不再使用 gzip 和 data_list 表单，接收服务需要支持 Content-Encoding: gzip
+		 *
+		 * @param compressionLevel
+		 *            压缩级别，0 到 9
+		 */
+		void setGzipBody(int compressionLevel) {
+			if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+				throw new IllegalArgumentException("compression level must be between 0 and 9.");
+			}
+			this.gzipBodyLevel = compressionLevel;
+		}
+
+		/**
+		 * 恢复为 gzip 和 data_list 表单
+		 */
+		void setFormBody() {
+			this.gzipBodyLevel = -1;
+		}
 
+		UrlEncodedFormEntity getHttpEntry(final byte[] bytes, final int length) throws IOException {
 			List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>();
 
 			if (compressData) {
-				ByteArrayOutputStream os = new ByteArrayOutputStream(bytes.length);
-				GZIPOutputStream gos = new GZIPOutputStream(os);
-				gos.write(bytes);
+				// 压缩输出直接经过 Base64 编码，不生成压缩后的中间数组
+				ByteArrayOutputStream os = new ByteArrayOutputStream(length);
+				GZIPOutputStream gos = new GZIPOutputStream(new Base64Coder.EncoderOutputStream(os));
+				gos.write(bytes, 0, length);
 				gos.close();
-				byte[] compressed = os.toByteArray();
-				os.close();
 
 				nameValuePairs.add(new BasicNameValuePair("gzip", "1"));
-				nameValuePairs.add(new BasicNameValuePair("data_list", new String(Base64Coder.encode(compressed))));
+				nameValuePairs.add(new BasicNameValuePair("data_list", os.toString("US-ASCII")));
 			} else {
 				nameValuePairs.add(new BasicNameValuePair("gzip", "0"));
-				nameValuePairs.add(new BasicNameValuePair("data_list", new String(Base64Coder.encode(bytes))));
+				nameValuePairs.add(new BasicNameValuePair("data_list", new String(Base64Coder.encode(bytes, length))));
 			}
 
 			return new UrlEncodedFormEntity(nameValuePairs);
 		}
 
+		final HttpClient httpClient;
 		final String serverUrl;
 		final Map<String, String> httpHeaders;
 
 		final Boolean compressData;
+		// 大于等于 0 时使用 gzip 请求体，值为压缩级别
+		volatile int gzipBodyLevel = -1;
 	}
 
 	private void addEvent(String distinctId, boolean isLoginId, String originDistinceId, String actionType,
 			String eventName, Map<String, Object> properties) throws InvalidArgumentException {
 //		assertKey("Distinct Id", distinctId);
-		assertProperties(actionType, properties);
-		if (actionType.equals("track")) {
-			assertKeyWithRegex("Event Name", eventName);
-		} else if (actionType.equals("track_signup")) {
-			assertKey("Original Distinct Id", originDistinceId);
+		final double sampleRate = sample(eventName, properties, null);
+		if (sampleRate <= 0) {
+			return;
+		}
+		try {
+			assertProperties(actionType, properties);
+			if (actionType.equals("track")) {
+				assertKeyWithRegex("Event Name", eventName);
+			} else if (actionType.equals("track_signup")) {
+				assertKey("Original Distinct Id", originDistinceId);
+			}
+		} catch (InvalidArgumentException e) {
+			rejectedCount.increment();
+			throw e;
 		}
 
 		// Event time
@@ -1027,19 +2101,100 @@ public class Track {
 			time = eventTime.getTime();
 		}
 
-		Map<String, Object> eventProperties = new HashMap<String, Object>();
-		if (actionType.equals("track") || actionType.equals("track_signup")) {
-			eventProperties.putAll(superProperties);
+		final ProfileStateCache cache = this.profileStateCache;
+		if (cache != null && actionType.startsWith("profile_")) {
+			properties = cache.filter(distinctId, actionType, properties);
+			if (properties == null) {
+				return;
+			}
+		}
+
+		final ProfileCoalescer coalescer = this.profileCoalescer;
+		if (coalescer != null && actionType.startsWith("profile_")) {
+			if (ProfileCoalescer.isCoalescable(actionType)) {
+				if (coalescer.add(distinctId, actionType, time, properties)) {
+					return;
+				}
+			} else {
+				coalescer.flush(distinctId);
+			}
 		}
-		if (properties != null) {
-			eventProperties.putAll(properties);
+
+		boolean copied = false;
+		if (sampleRate < 1) {
+			// 不修改调用方传入的属性
+			properties = properties == null ? new HashMap<String, Object>() : new HashMap<String, Object>(properties);
+			properties.put("$sample_rate", sampleRate);
+			copied = true;
+		}
+
+		Map<String, Object> eventProperties;
+		if (actionType.equals("track") || actionType.equals("track_signup")) {
+			// 异步消费者在返回后才序列化，先复制调用方的属性，公共属性以预编码的形式在序列化时拼接，事件属性优先
+			if (!copied && properties != null) {
+				properties = new HashMap<String, Object>(properties);
+			}
+			eventProperties = new EventProperties(properties, superPropertiesSnapshot);
+		} else {
+			eventProperties = new HashMap<String, Object>();
+			if (properties != null) {
+				eventProperties.putAll(properties);
+			}
 		}
 
 //		if (isLoginId) {
 //			eventProperties.put("$is_login_id", true);
 //		}
 
-		Map<String, String> libProperties = getLibProperties();
+		sendEvent(actionType, eventName, originDistinceId, time, eventProperties);
+	}
+
+	/**
+	 * 发送由 {@link TrackEvent} 构造的事件
+	 */
+	void addEvent(TrackEvent trackEvent) throws InvalidArgumentException {
+		final String actionType = trackEvent.getActionType();
+		final String eventName = trackEvent.getEventName();
+		if (actionType == null) {
+			throw new InvalidArgumentException("The event has already been emitted.");
+		}
+		final double sampleRate = sample(eventName, null, trackEvent);
+		if (sampleRate <= 0) {
+			return;
+		}
+		try {
+			assertProperties(actionType, trackEvent);
+			if (actionType.equals("track")) {
+				assertKeyWithRegex("Event Name", eventName);
+			}
+		} catch (InvalidArgumentException e) {
+			rejectedCount.increment();
+			throw e;
+		}
+
+		if (sampleRate < 1) {
+			trackEvent.put("$sample_rate", sampleRate);
+		}
+		long time = trackEvent.getTime() < 0 ? System.currentTimeMillis() : trackEvent.getTime();
+
+		Map<String, Object> eventProperties = trackEvent
+				.snapshot(actionType.equals("track") ? superPropertiesSnapshot : null);
+
+		sendEvent(actionType, eventName, null, time, eventProperties);
+	}
+
+	void sendEvent(String actionType, String eventName, String originDistinceId, long time,
+			Map<String, Object> eventProperties) {
+		sendEvent(actionType, eventName, originDistinceId, time, eventProperties, true);
+	}
+
+	/**
+	 * @param callerInfo
+	 *            是否按调用位置填充 $lib_detail，不是由业务线程直接发送的事件不填充
+	 */
+	void sendEvent(String actionType, String eventName, String originDistinceId, long time,
+			Map<String, Object> eventProperties, boolean callerInfo) {
+		Map<String, String> libProperties = callerInfo ? getLibProperties() : this.baseLibProperties;
 
 		Map<String, Object> event = new HashMap<String, Object>();
 
@@ -1060,10 +2215,48 @@ public class Track {
 			event.put("original_id", originDistinceId);
 		}
 
+		acceptedCount.increment();
 		this.consumer.send(event);
 	}
 
 	private Map<String, String> getLibProperties() {
+		Map<String, String> base = this.baseLibProperties;
+		switch (this.callerInfoMode) {
+		case DISABLED:
+			return base;
+		case SAMPLED:
+			if (ThreadLocalRandom.current().nextInt(this.callerInfoSampleInterval) != 0) {
+				return base;
+			}
+			break;
+		default:
+			break;
+		}
+
+		StackTraceElement traceElement = CallerLocator.locate();
+		if (traceElement == null) {
+			return base;
+		}
+
+		Map<String, String> libProperties = libPropertiesCache.get(traceElement);
+		if (libProperties == null) {
+			Map<String, String> detail = new HashMap<String, String>(base);
+			detail.put("$lib_detail", String.format("%s##%s##%s##%s", traceElement.getClassName(),
+					traceElement.getMethodName(), traceElement.getFileName(), traceElement.getLineNumber()));
+			libProperties = Collections.unmodifiableMap(detail);
+
+			// 调用位置超过上限后不再缓存新的位置，已缓存的位置继续命中，避免反复清空
+			if (libPropertiesCache.size() < LIB_PROPERTIES_CACHE_SIZE) {
+				libPropertiesCache.put(traceElement, libProperties);
+			}
+		}
+		return libProperties;
+	}
+
+	/**
+	 * 公共属性变化后重建不含调用位置的 lib 属性，并清空按调用位置缓存的 lib 属性
+	 */
+	private void resetLibProperties() {
 		Map<String, String> libProperties = new HashMap<String, String>();
 		libProperties.put("$lib", "Java");
 		libProperties.put("$lib_version", SDK_VERSION);
@@ -1073,15 +2266,8 @@ public class Track {
 			libProperties.put("$app_version", (String) this.superProperties.get("$app_version"));
 		}
 
-		StackTraceElement[] trace = (new Exception()).getStackTrace();
-
-		if (trace.length > 3) {
-			StackTraceElement traceElement = trace[3];
-			libProperties.put("$lib_detail", String.format("%s##%s##%s##%s", traceElement.getClassName(),
-					traceElement.getMethodName(), traceElement.getFileName(), traceElement.getLineNumber()));
-		}
-
-		return libProperties;
+		this.baseLibProperties = Collections.unmodifiableMap(libProperties);
+		this.libPropertiesCache.clear();
 	}
 
 	private void assertKey(String type, String key) throws InvalidArgumentException {
@@ -1094,78 +2280,121 @@ public class Track {
 	}
 
 	private void assertKeyWithRegex(String type, String key) throws InvalidArgumentException {
+		if (key != null && KeyValidator.isCached(key)) {
+			return;
+		}
 		assertKey(type, key);
-		if (!(KEY_PATTERN.matcher(key).matches())) {
+		if (!KeyValidator.isValid(key)) {
 			throw new InvalidArgumentException("The " + type + "'" + key + "' is invalid.");
 		}
 	}
 
-	@SuppressWarnings("unchecked")
 	private void assertProperties(String eventType, Map<String, Object> properties) throws InvalidArgumentException {
 		if (null == properties) {
 			return;
 		}
 		for (Map.Entry<String, Object> property : properties.entrySet()) {
-			if (property.getKey().equals("$is_login_id")) {
-				if (!(property.getValue() instanceof Boolean)) {
-					throw new InvalidArgumentException("The property value of '$is_login_id' should be " + "Boolean.");
-				}
-				continue;
+			Object value = assertProperty(eventType, property.getKey(), property.getValue());
+			if (value != property.getValue()) {
+				property.setValue(value);
 			}
+		}
+	}
 
-			assertKeyWithRegex("property", property.getKey());
+	/**
+	 * 校验单个属性
+	 *
+	 * @return 校验后的属性值，超长的字符串会被截断
+	 */
+	@SuppressWarnings("unchecked")
+	private Object assertProperty(String eventType, String key, Object value) throws InvalidArgumentException {
+		if (key.equals("$is_login_id")) {
+			if (!(value instanceof Boolean)) {
+				throw new InvalidArgumentException("The property value of '$is_login_id' should be " + "Boolean.");
+			}
+			return value;
+		}
 
-			if (!(property.getValue() instanceof Number) && !(property.getValue() instanceof Date)
-					&& !(property.getValue() instanceof String) && !(property.getValue() instanceof Boolean)
-					&& !(property.getValue() instanceof List<?>)) {
-//				throw new InvalidArgumentException("The property '" + property.getKey() + "' should be a basic type: "
-//						+ "Number, String, Date, Boolean, List<String>.");
-				//标记点 注释掉
-				loger.info("The property '" + property.getKey() + "' not is a basic type: "
-						+ "Number, String, Date, Boolean, List<String>.");
+		assertKeyWithRegex("property", key);
+
+		if (!(value instanceof Number) && !(value instanceof Date) && !(value instanceof String)
+				&& !(value instanceof Boolean) && !(value instanceof List<?>)) {
+//			throw new InvalidArgumentException("The property '" + key + "' should be a basic type: "
+//					+ "Number, String, Date, Boolean, List<String>.");
+			//标记点 注释掉
+			loger.info("The property '" + key + "' not is a basic type: "
+					+ "Number, String, Date, Boolean, List<String>.");
+		}
+
+		if (key.equals("$time") && !(value instanceof Date)) {
+			throw new InvalidArgumentException("The property '$time' should be a java.util.Date.");
+		}
+
+		// List 类型的属性值，List 元素必须为 String 类型
+		if (value instanceof List<?>) {
+			for (final ListIterator<Object> it = ((List<Object>) value).listIterator(); it.hasNext();) {
+				Object element = it.next();
+				if (!(element instanceof String)) {
+					throw new InvalidArgumentException("The property '" + key + "' should be a list of String.");
+				}
+				if (((String) element).length() > 8192) {
+					it.set(((String) element).substring(0, 8192));
+				}
 			}
+		}
 
-			if (property.getKey().equals("$time") && !(property.getValue() instanceof Date)) {
-				throw new InvalidArgumentException("The property '$time' should be a java.util.Date.");
+		// String 类型的属性值，长度不能超过 8192
+		if (value instanceof String) {
+			String stringValue = (String) value;
+			if (stringValue.length() > 8192) {
+				value = stringValue.substring(0, 8192);
 			}
+		}
 
-			// List 类型的属性值，List 元素必须为 String 类型
-			if (property.getValue() instanceof List<?>) {
-				for (final ListIterator<Object> it = ((List<Object>) property.getValue()).listIterator(); it
-						.hasNext();) {
-					Object element = it.next();
-					if (!(element instanceof String)) {
-						throw new InvalidArgumentException(
-								"The property '" + property.getKey() + "' should be a list of String.");
-					}
-					if (((String) element).length() > 8192) {
-						it.set(((String) element).substring(0, 8192));
-					}
-				}
+		assertPropertyType(eventType, value instanceof Number, value instanceof List<?>);
+		return value;
+	}
+
+	private void assertPropertyType(String eventType, boolean isNumber, boolean isList)
+			throws InvalidArgumentException {
+		if (eventType.equals("profile_increment")) {
+			if (!isNumber) {
+				throw new InvalidArgumentException("The property value of PROFILE_INCREMENT should be a " + "Number.");
+			}
+		} else if (eventType.equals("profile_append")) {
+			if (!isList) {
+				throw new InvalidArgumentException(
+						"The property value of PROFILE_INCREMENT should be a " + "List<String>.");
 			}
+		}
+	}
 
-			// String 类型的属性值，长度不能超过 8192
-			if (property.getValue() instanceof String) {
-				 
-				String value = (String) property.getValue();
-				 
-				if (value.length() > 8192) {
-					property.setValue(value.substring(0, 8192));
-				}
-				 
+	/**
+	 * 校验 {@link TrackEvent} 中的属性，数值和布尔类型的属性不装箱
+	 */
+	private void assertProperties(String eventType, TrackEvent trackEvent) throws InvalidArgumentException {
+		for (int i = 0; i < trackEvent.size; i++) {
+			String key = trackEvent.keys[i];
+			if (key == null) {
+				throw new InvalidArgumentException("The property is empty.");
+			}
+			byte type = trackEvent.types[i];
+			if (type == FlatProperties.OBJECT) {
+				trackEvent.objects[i] = assertProperty(eventType, key, trackEvent.objects[i]);
+				continue;
 			}
 
-			if (eventType.equals("profile_increment")) {
-				if (!(property.getValue() instanceof Number)) {
-					throw new InvalidArgumentException(
-							"The property value of PROFILE_INCREMENT should be a " + "Number.");
-				}
-			} else if (eventType.equals("profile_append")) {
-				if (!(property.getValue() instanceof List<?>)) {
-					throw new InvalidArgumentException(
-							"The property value of PROFILE_INCREMENT should be a " + "List<String>.");
+			if (key.equals("$is_login_id")) {
+				if (type != FlatProperties.BOOLEAN) {
+					throw new InvalidArgumentException("The property value of '$is_login_id' should be " + "Boolean.");
 				}
+				continue;
+			}
+			assertKeyWithRegex("property", key);
+			if (key.equals("$time")) {
+				throw new InvalidArgumentException("The property '$time' should be a java.util.Date.");
 			}
+			assertPropertyType(eventType, type != FlatProperties.BOOLEAN, false);
 		}
 	}
 
@@ -1180,7 +2409,7 @@ public class Track {
 		return sbStr.toString();
 	}
 
-	private static ObjectMapper getJsonObjectMapper() {
+	static ObjectMapper getJsonObjectMapper() {
 		ObjectMapper jsonObjectMapper = new ObjectMapper();
 		// 容忍json中出现未知的列
 		jsonObjectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
@@ -1192,12 +2421,33 @@ public class Track {
 
 	private final static String SDK_VERSION = "1.0.0";
 
-	private final static Pattern KEY_PATTERN = Pattern.compile(
-			"^((?!^distinct_id$|^original_id$|^time$|^properties$|^id$|^first_id$|^second_id$|^users$|^events$|^event$|^user_id$|^date$|^datetime$)[a-zA-Z_$][a-zA-Z\\d_$]{0,99})$",
-			Pattern.CASE_INSENSITIVE);
-
 	private final Consumer consumer;
 
 	private final Map<String, Object> superProperties;
 
+	private final static AtomicInteger INSTANCE_SEQUENCE = new AtomicInteger();
+
+	private final LongAdder acceptedCount = new LongAdder();
+	private final LongAdder rejectedCount = new LongAdder();
+	private final LongAdder sampledOutCount = new LongAdder();
+
+	private volatile ProfileCoalescer profileCoalescer;
+	private volatile ProfileStateCache profileStateCache;
+
+	private final ConcurrentHashMap<String, Sampler> samplers = new ConcurrentHashMap<String, Sampler>();
+	// 没有配置采样时跳过查找
+	private volatile boolean samplingEnabled = false;
+	private ObjectName objectName;
+
+	private final ObjectWriter superPropertiesWriter = getJsonObjectMapper().writer();
+
+	private volatile SuperPropertiesSnapshot superPropertiesSnapshot;
+
+	private final ThreadLocal<TrackEvent> eventBuilders = new ThreadLocal<TrackEvent>() {
+		@Override
+		protected TrackEvent initialValue() {
+			return new TrackEvent(Track.this);
+		}
+	};
+
 }
@@ -0,0 +1,168 @@
+package com.yonyou.cloud.track;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import com.yonyou.cloud.exceptions.InvalidArgumentException;
+
+/**
+ * 事件构造器，通过 {@link Track#event(String)} 获得
+ *
+ * <pre>
+ * track.event("Checkout").put("amount", 12.5).put("items", 3).emit();
+ * </pre>
+ *
+ * 属性保存在平行数组中，数值和布尔类型不装箱。同一个线程内构造器会被重复使用，
+ * 因此必须在 emit 之后才能开始构造下一个事件，也不要在线程之间传递构造器
+ */
+public class TrackEvent {
+
+	private final static int INITIAL_CAPACITY = 16;
+
+	private final Track track;
+
+	private String actionType;
+	private String eventName;
+	// 事件时间，小于 0 时使用当前时间
+	private long time;
+
+	String[] keys = new String[INITIAL_CAPACITY];
+	byte[] types = new byte[INITIAL_CAPACITY];
+	long[] primitives = new long[INITIAL_CAPACITY];
+	Object[] objects = new Object[INITIAL_CAPACITY];
+	int size;
+
+	TrackEvent(Track track) {
+		this.track = track;
+	}
+
+	TrackEvent reset(String actionType, String eventName) {
+		Arrays.fill(objects, 0, size, null);
+		Arrays.fill(keys, 0, size, null);
+		this.size = 0;
+		this.time = -1;
+		this.actionType = actionType;
+		this.eventName = eventName;
+		return this;
+	}
+
+	String getActionType() {
+		return actionType;
+	}
+
+	String getEventName() {
+		return eventName;
+	}
+
+	long getTime() {
+		return time;
+	}
+
+	/**
+	 * 设置事件时间，不设置时使用 emit 时的当前时间
+	 */
+	public TrackEvent time(long timeMillis) {
+		this.time = timeMillis;
+		return this;
+	}
+
+	public TrackEvent put(String key, long value) {
+		int index = slot(key);
+		types[index] = FlatProperties.LONG;
+		primitives[index] = value;
+		objects[index] = null;
+		return this;
+	}
+
+	public TrackEvent put(String key, double value) {
+		int index = slot(key);
+		types[index] = FlatProperties.DOUBLE;
+		primitives[index] = Double.doubleToRawLongBits(value);
+		objects[index] = null;
+		return this;
+	}
+
+	public TrackEvent put(String key, boolean value) {
+		int index = slot(key);
+		types[index] = FlatProperties.BOOLEAN;
+		primitives[index] = value ? 1 : 0;
+		objects[index] = null;
+		return this;
+	}
+
+	/**
+	 * 属性取值可接受类型为{@link Number}, {@link String}, {@link Date}和 {@link java.util.List}，
+	 * $time 属性会覆盖事件时间
+	 */
+	public TrackEvent put(String key, Object value) {
+		if ("$time".equals(key) && value instanceof Date) {
+			this.time = ((Date) value).getTime();
+			return this;
+		}
+		int index = slot(key);
+		types[index] = FlatProperties.OBJECT;
+		objects[index] = value;
+		return this;
+	}
+
+	/**
+	 * 发送事件，发送后构造器被清空，可以用于下一个事件
+	 *
+	 * @throws InvalidArgumentException
+	 *             eventName 或 properties 不符合命名规范和类型规范时抛出该异常
+	 */
+	public void emit() throws InvalidArgumentException {
+		try {
+			track.addEvent(this);
+		} finally {
+			reset(null, null);
+		}
+	}
+
+	/**
+	 * 复制出一份只读的属性
+	 *
+	 * @param superProperties
+	 *            需要拼接的公共属性，为 null 表示不拼接
+	 */
+	FlatProperties snapshot(SuperPropertiesSnapshot superProperties) {
+		return new FlatProperties(Arrays.copyOf(keys, size), Arrays.copyOf(types, size),
+				Arrays.copyOf(primitives, size), Arrays.copyOf(objects, size), size, superProperties);
+	}
+
+	/**
+	 * @return 已设置的属性值，没有时返回 null
+	 */
+	Object get(String key) {
+		int index = indexOf(key);
+		return index < 0 ? null : FlatProperties.value(types[index], primitives[index], objects[index]);
+	}
+
+	/**
+	 * null 属性名也按普通属性名保存，由 emit 时的校验抛出 InvalidArgumentException
+	 */
+	private int indexOf(String key) {
+		for (int i = 0; i < size; i++) {
+			if (key == null ? keys[i] == null : key.equals(keys[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int slot(String key) {
+		int index = indexOf(key);
+		if (index >= 0) {
+			return index;
+		}
+		if (size == keys.length) {
+			int capacity = size << 1;
+			keys = Arrays.copyOf(keys, capacity);
+			types = Arrays.copyOf(types, capacity);
+			primitives = Arrays.copyOf(primitives, capacity);
+			objects = Arrays.copyOf(objects, capacity);
+		}
+		keys[size] = key;
+		return size++;
+	}
+}
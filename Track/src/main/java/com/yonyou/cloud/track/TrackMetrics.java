@@ -0,0 +1,250 @@
+package com.yonyou.cloud.track;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 某一时刻 {@link Track} 及其日志消费者的运行指标快照，由 {@link Track#getMetrics()} 获取
+ *
+ * 计数均为创建以来的累计值。消费者不是文件日志消费者时，消费者相关的指标均为 0
+ */
+public final class TrackMetrics {
+
+	/**
+	 * 一组耗时的统计，分位数的误差不超过一倍
+	 */
+	public static final class Latency {
+		private final long count;
+		private final long totalNanos;
+		private final long maxNanos;
+		private final long p50Nanos;
+		private final long p99Nanos;
+		private final long p999Nanos;
+
+		Latency(long count, long totalNanos, long maxNanos, long p50Nanos, long p99Nanos, long p999Nanos) {
+			this.count = count;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+			this.p50Nanos = p50Nanos;
+			this.p99Nanos = p99Nanos;
+			this.p999Nanos = p999Nanos;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+
+		public long getMeanNanos() {
+			return count == 0 ? 0 : totalNanos / count;
+		}
+
+		public long getMaxNanos() {
+			return maxNanos;
+		}
+
+		public long getP50Nanos() {
+			return p50Nanos;
+		}
+
+		public long getP99Nanos() {
+			return p99Nanos;
+		}
+
+		public long getP999Nanos() {
+			return p999Nanos;
+		}
+
+		@Override
+		public String toString() {
+			return "{count=" + count + ", mean=" + micros(getMeanNanos()) + "us, p50=" + micros(p50Nanos)
+					+ "us, p99=" + micros(p99Nanos) + "us, p999=" + micros(p999Nanos) + "us, max=" + micros(maxNanos)
+					+ "us}";
+		}
+
+		private static long micros(long nanos) {
+			return TimeUnit.NANOSECONDS.toMicros(nanos);
+		}
+	}
+
+	/**
+	 * 用户属性缓存的命中情况，未开启缓存时均为 0
+	 */
+	public static final class ProfileCache {
+		private final long hitCount;
+		private final long missCount;
+		private final long evictionCount;
+		private final long entries;
+		private final long estimatedBytes;
+
+		ProfileCache(long hitCount, long missCount, long evictionCount, long entries, long estimatedBytes) {
+			this.hitCount = hitCount;
+			this.missCount = missCount;
+			this.evictionCount = evictionCount;
+			this.entries = entries;
+			this.estimatedBytes = estimatedBytes;
+		}
+
+		/**
+		 * @return 因取值未变化而跳过的属性数
+		 */
+		public long getHitCount() {
+			return hitCount;
+		}
+
+		/**
+		 * @return 需要发送的属性数
+		 */
+		public long getMissCount() {
+			return missCount;
+		}
+
+		public double getHitRatio() {
+			long total = hitCount + missCount;
+			return total == 0 ? 0 : (double) hitCount / total;
+		}
+
+		public long getEvictionCount() {
+			return evictionCount;
+		}
+
+		public long getEntries() {
+			return entries;
+		}
+
+		public long getEstimatedBytes() {
+			return estimatedBytes;
+		}
+
+		@Override
+		public String toString() {
+			return "{hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount + ", entries="
+					+ entries + ", bytes=" + estimatedBytes + "}";
+		}
+	}
+
+	final static Latency EMPTY_LATENCY = new Latency(0, 0, 0, 0, 0, 0);
+	final static ProfileCache EMPTY_PROFILE_CACHE = new ProfileCache(0, 0, 0, 0, 0);
+
+	private final long acceptedCount;
+	private final long rejectedCount;
+	private final long sampledOutCount;
+	private final long bufferedBytes;
+	private final long writtenBytes;
+	private final long writeFailedCount;
+	private final long droppedCount;
+	private final long spilledCount;
+	private final long blockedCount;
+	private final Latency flushLatency;
+	private final Latency writeLatency;
+	private final Latency lockWaitLatency;
+	private final ProfileCache profileCache;
+
+	TrackMetrics(long acceptedCount, long rejectedCount, long sampledOutCount, long bufferedBytes, long writtenBytes,
+			long writeFailedCount, long droppedCount, long spilledCount, long blockedCount, Latency flushLatency,
+			Latency writeLatency, Latency lockWaitLatency, ProfileCache profileCache) {
+		this.acceptedCount = acceptedCount;
+		this.rejectedCount = rejectedCount;
+		this.sampledOutCount = sampledOutCount;
+		this.bufferedBytes = bufferedBytes;
+		this.writtenBytes = writtenBytes;
+		this.writeFailedCount = writeFailedCount;
+		this.droppedCount = droppedCount;
+		this.spilledCount = spilledCount;
+		this.blockedCount = blockedCount;
+		this.flushLatency = flushLatency;
+		this.writeLatency = writeLatency;
+		this.lockWaitLatency = lockWaitLatency;
+		this.profileCache = profileCache;
+	}
+
+	/**
+	 * @return 校验通过、交给消费者的事件数
+	 */
+	public long getAcceptedCount() {
+		return acceptedCount;
+	}
+
+	/**
+	 * @return 校验失败、抛出 InvalidArgumentException 的事件数
+	 */
+	public long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * @return 被采样或限流丢弃的事件数
+	 */
+	public long getSampledOutCount() {
+		return sampledOutCount;
+	}
+
+	/**
+	 * @return 当前缓冲中尚未写入文件的字节数，达到溢出上限前应当告警
+	 */
+	public long getBufferedBytes() {
+		return bufferedBytes;
+	}
+
+	public long getWrittenBytes() {
+		return writtenBytes;
+	}
+
+	/**
+	 * @return 写文件失败的次数，失败的数据留在缓冲区中等待重试
+	 */
+	public long getWriteFailedCount() {
+		return writeFailedCount;
+	}
+
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	public long getSpilledCount() {
+		return spilledCount;
+	}
+
+	public long getBlockedCount() {
+		return blockedCount;
+	}
+
+	/**
+	 * @return 每次刷新（换出缓冲区并写入文件）的耗时
+	 */
+	public Latency getFlushLatency() {
+		return flushLatency;
+	}
+
+	/**
+	 * @return 每次写文件调用的耗时
+	 */
+	public Latency getWriteLatency() {
+		return writeLatency;
+	}
+
+	/**
+	 * @return 业务线程等待分段锁的耗时，为降低开销只抽样记录；缓冲区写满时业务线程等待刷新锁的耗时每次都记录
+	 */
+	public Latency getLockWaitLatency() {
+		return lockWaitLatency;
+	}
+
+	/**
+	 * @return 用户属性缓存的命中情况
+	 */
+	public ProfileCache getProfileCache() {
+		return profileCache;
+	}
+
+	@Override
+	public String toString() {
+		return "TrackMetrics{accepted=" + acceptedCount + ", rejected=" + rejectedCount + ", sampledOut=" + sampledOutCount
+				+ ", bufferedBytes="
+				+ bufferedBytes + ", writtenBytes=" + writtenBytes + ", writeFailed=" + writeFailedCount
+				+ ", dropped=" + droppedCount + ", spilled=" + spilledCount + ", blocked=" + blockedCount
+				+ ", flush=" + flushLatency + ", write=" + writeLatency + ", lockWait=" + lockWaitLatency + ", profileCache=" + profileCache + "}";
+	}
+}
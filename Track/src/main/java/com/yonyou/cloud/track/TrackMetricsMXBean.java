@@ -0,0 +1,34 @@
+package com.yonyou.cloud.track;
+
+/**
+ * 每个 {@link Track} 实例注册的 JMX 接口，ObjectName 为
+ * com.yonyou.cloud.track:type=Track,name=track-序号，含义见 {@link TrackMetrics}
+ */
+public interface TrackMetricsMXBean {
+
+	long getAcceptedCount();
+
+	long getRejectedCount();
+
+	long getSampledOutCount();
+
+	long getBufferedBytes();
+
+	long getWrittenBytes();
+
+	long getWriteFailedCount();
+
+	long getDroppedCount();
+
+	long getSpilledCount();
+
+	long getBlockedCount();
+
+	TrackMetrics.Latency getFlushLatency();
+
+	TrackMetrics.Latency getWriteLatency();
+
+	TrackMetrics.Latency getLockWaitLatency();
+
+	TrackMetrics.ProfileCache getProfileCache();
+}
@@ -1,5 +1,10 @@
 package com.yonyou.cloud.track.util;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
 //Copyright 2003-2010 Christian d'Heureuse, Inventec Informatik AG, Zurich, Switzerland
 //www.source-code.biz, www.inventec.ch/chdh
 //
@@ -44,6 +49,21 @@ public class Base64Coder {
       map2[map1[i]] = (byte) i;
   }
 
+  // Lookup tables from 12-bit values to the two Base64 characters encoding them,
+  // so that a 3-byte group is encoded with four table lookups and no branches.
+  private static final byte[] pairHi = new byte[4096];
+  private static final byte[] pairLo = new byte[4096];
+
+  static {
+    for (int i = 0; i < 4096; i++) {
+      pairHi[i] = (byte) map1[i >>> 6];
+      pairLo[i] = (byte) map1[i & 0x3f];
+    }
+  }
+
+  // Input block size used when the output buffer has no accessible array.
+  private static final int BLOCK_SIZE = 3 * 1024;
+
   /**
    * Encodes a string into Base64 format.
    * No blanks or line breaks are inserted.
@@ -75,29 +95,178 @@ public class Base64Coder {
    * @return A character array with the Base64 encoded data.
    */
   public static char[] encode(byte[] in, int iLen) {
-    int oDataLen = (iLen * 4 + 2) / 3;       // output length without padding
-    int oLen = ((iLen + 2) / 3) * 4;         // output length including padding
-    char[] out = new char[oLen];
+    char[] out = new char[encodedLength(iLen)];
     int ip = 0;
     int op = 0;
-    while (ip < iLen) {
-      int i0 = in[ip++] & 0xff;
-      int i1 = ip < iLen ? in[ip++] & 0xff : 0;
-      int i2 = ip < iLen ? in[ip++] & 0xff : 0;
-      int o0 = i0 >>> 2;
-      int o1 = ((i0 & 3) << 4) | (i1 >>> 4);
-      int o2 = ((i1 & 0xf) << 2) | (i2 >>> 6);
-      int o3 = i2 & 0x3F;
-      out[op++] = map1[o0];
-      out[op++] = map1[o1];
-      out[op] = op < oDataLen ? map1[o2] : '=';
-      op++;
-      out[op] = op < oDataLen ? map1[o3] : '=';
-      op++;
+    int end = iLen - iLen % 3;
+    while (ip < end) {
+      int bits = (in[ip] & 0xff) << 16 | (in[ip + 1] & 0xff) << 8 | (in[ip + 2] & 0xff);
+      out[op] = map1[bits >>> 18];
+      out[op + 1] = map1[(bits >>> 12) & 0x3f];
+      out[op + 2] = map1[(bits >>> 6) & 0x3f];
+      out[op + 3] = map1[bits & 0x3f];
+      ip += 3;
+      op += 4;
+    }
+    if (ip < iLen) {
+      int i0 = in[ip] & 0xff;
+      int i1 = ip + 1 < iLen ? in[ip + 1] & 0xff : 0;
+      out[op] = map1[i0 >>> 2];
+      out[op + 1] = map1[((i0 & 3) << 4) | (i1 >>> 4)];
+      out[op + 2] = ip + 1 < iLen ? map1[(i1 & 0xf) << 2] : '=';
+      out[op + 3] = '=';
     }
     return out;
   }
 
+  /**
+   * Returns the number of Base64 characters produced for <code>len</code> input bytes,
+   * including padding.
+   *
+   * @param len number of input bytes.
+   * @return the encoded length.
+   */
+  public static int encodedLength(int len) {
+    return ((len + 2) / 3) * 4;
+  }
+
+  /**
+   * Encodes bytes into a caller-supplied array as ASCII Base64 characters.
+   * No blanks or line breaks are inserted.
+   *
+   * @param in     an array containing the data bytes to be encoded.
+   * @param off    offset of the first byte to encode.
+   * @param len    number of bytes to encode.
+   * @param out    the destination array, must have room for <code>encodedLength(len)</code> bytes.
+   * @param outOff offset in <code>out</code> at which to start writing.
+   * @return the number of bytes written to <code>out</code>.
+   */
+  public static int encode(byte[] in, int off, int len, byte[] out, int outOff) {
+    int ip = off;
+    int op = outOff;
+    int end = off + len - len % 3;
+    while (ip < end) {
+      int bits = (in[ip] & 0xff) << 16 | (in[ip + 1] & 0xff) << 8 | (in[ip + 2] & 0xff);
+      int hi = bits >>> 12;
+      int lo = bits & 0xfff;
+      out[op] = pairHi[hi];
+      out[op + 1] = pairLo[hi];
+      out[op + 2] = pairHi[lo];
+      out[op + 3] = pairLo[lo];
+      ip += 3;
+      op += 4;
+    }
+    return op - outOff + encodeTail(in, ip, off + len - ip, out, op);
+  }
+
+  /**
+   * Encodes bytes into a buffer as ASCII Base64 characters, starting at its position.
+   * The position is advanced by the number of bytes written.
+   *
+   * @param in  an array containing the data bytes to be encoded.
+   * @param off offset of the first byte to encode.
+   * @param len number of bytes to encode.
+   * @param out the destination buffer, must have <code>encodedLength(len)</code> bytes remaining.
+   */
+  public static void encode(byte[] in, int off, int len, ByteBuffer out) {
+    if (out.remaining() < encodedLength(len))
+      throw new IllegalArgumentException("Not enough room in the output buffer.");
+    if (out.hasArray()) {
+      int n = encode(in, off, len, out.array(), out.arrayOffset() + out.position());
+      out.position(out.position() + n);
+      return;
+    }
+    byte[] block = new byte[encodedLength(Math.min(len, BLOCK_SIZE))];
+    for (int ip = off; ip < off + len; ip += BLOCK_SIZE) {
+      int n = encode(in, ip, Math.min(BLOCK_SIZE, off + len - ip), block, 0);
+      out.put(block, 0, n);
+    }
+  }
+
+  // Encodes the last 1 or 2 bytes with padding; returns the number of bytes written.
+  private static int encodeTail(byte[] in, int ip, int remaining, byte[] out, int op) {
+    if (remaining == 0)
+      return 0;
+    int i0 = in[ip] & 0xff;
+    int i1 = remaining > 1 ? in[ip + 1] & 0xff : 0;
+    out[op] = (byte) map1[i0 >>> 2];
+    out[op + 1] = (byte) map1[((i0 & 3) << 4) | (i1 >>> 4)];
+    out[op + 2] = remaining > 1 ? (byte) map1[(i1 & 0xf) << 2] : (byte) '=';
+    out[op + 3] = '=';
+    return 4;
+  }
+
+  /**
+   * An output stream that Base64-encodes everything written to it and passes the ASCII
+   * characters on to the underlying stream. Up to two bytes are held back until a full
+   * 3-byte group is available; {@link #finish()} or {@link #close()} writes them with padding.
+   */
+  public static class EncoderOutputStream extends FilterOutputStream {
+
+    private final byte[] pending = new byte[3];
+    private int pendingLength;
+    private final byte[] block = new byte[encodedLength(BLOCK_SIZE)];
+    private boolean finished;
+
+    public EncoderOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (finished)
+        throw new IOException("Stream already finished.");
+      pending[pendingLength++] = (byte) b;
+      if (pendingLength == 3) {
+        out.write(block, 0, encode(pending, 0, 3, block, 0));
+        pendingLength = 0;
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (finished)
+        throw new IOException("Stream already finished.");
+      // complete a held-back group first
+      while (pendingLength > 0 && len > 0) {
+        write(b[off++]);
+        len--;
+      }
+      while (len >= 3) {
+        int chunk = Math.min(BLOCK_SIZE, len - len % 3);
+        out.write(block, 0, encode(b, off, chunk, block, 0));
+        off += chunk;
+        len -= chunk;
+      }
+      while (len-- > 0)
+        pending[pendingLength++] = b[off++];
+    }
+
+    /**
+     * Writes the held-back bytes with padding without closing the underlying stream.
+     * No further data may be written afterwards.
+     *
+     * @throws IOException if the underlying stream fails.
+     */
+    public void finish() throws IOException {
+      if (finished)
+        return;
+      finished = true;
+      out.write(block, 0, encodeTail(pending, 0, pendingLength, block, 0));
+      pendingLength = 0;
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        finish();
+      } finally {
+        out.close();
+      }
+    }
+  }
+
   /**
    * Decodes a string from Base64 format.
    *
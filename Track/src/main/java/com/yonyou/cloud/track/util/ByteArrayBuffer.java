@@ -0,0 +1,102 @@
+package com.yonyou.cloud.track.util;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 可重复使用的字节缓冲区
+ *
+ * 与 {@link java.io.ByteArrayOutputStream} 不同，它的方法不加锁，并且可以直接访问底层数组，
+ * 调用方负责保证线程安全
+ */
+public class ByteArrayBuffer extends OutputStream {
+
+	private byte[] buf;
+	private int count;
+
+	public ByteArrayBuffer(int initialCapacity) {
+		this.buf = new byte[Math.max(initialCapacity, 16)];
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	@Override
+	public void close() {
+		// 缓冲区会被重复使用，关闭时不做任何处理
+	}
+
+	/**
+	 * @return 已写入的字节数
+	 */
+	public int length() {
+		return count;
+	}
+
+	/**
+	 * 截断到指定长度，用于丢弃写入失败的半条记录
+	 */
+	public void setLength(int length) {
+		if (length < 0 || length > count) {
+			throw new IndexOutOfBoundsException("length: " + length);
+		}
+		this.count = length;
+	}
+
+	/**
+	 * 丢弃开头的 n 个字节，剩余内容前移
+	 */
+	public void discard(int n) {
+		if (n < 0 || n > count) {
+			throw new IndexOutOfBoundsException("n: " + n);
+		}
+		System.arraycopy(buf, n, buf, 0, count - n);
+		count -= n;
+	}
+
+	/**
+	 * 清空内容，保留已分配的数组
+	 */
+	public void reset() {
+		this.count = 0;
+	}
+
+	/**
+	 * @return 底层数组，有效内容为 [0, length())
+	 */
+	public byte[] array() {
+		return buf;
+	}
+
+	/**
+	 * @return 包装有效内容的 ByteBuffer，不复制数据
+	 */
+	public ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(buf, 0, count);
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buf, count);
+	}
+
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity > buf.length) {
+			int newCapacity = Math.max(buf.length << 1, minCapacity);
+			if (newCapacity < 0) {
+				newCapacity = Integer.MAX_VALUE - 8;
+			}
+			buf = Arrays.copyOf(buf, newCapacity);
+		}
+	}
+}
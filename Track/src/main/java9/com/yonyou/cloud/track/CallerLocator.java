@@ -0,0 +1,35 @@
+package com.yonyou.cloud.track;
+
+import java.lang.StackWalker.StackFrame;
+import java.util.Optional;
+
+/**
+ * 定位埋点接口的调用位置，用于填充 $lib_detail
+ *
+ * Java 9 及以上版本的实现，StackWalker 按需获取栈帧，通常只需遍历 4 层即可找到调用方，
+ * 不会像异常栈那样构造完整的调用栈
+ */
+final class CallerLocator {
+
+	private static final int MAX_DEPTH = 16;
+
+	private static final StackWalker WALKER = StackWalker.getInstance();
+
+	private CallerLocator() {
+	}
+
+	/**
+	 * @return 第一个不属于 SDK 的栈帧，找不到时返回 null
+	 */
+	static StackTraceElement locate() {
+		Optional<StackFrame> frame = WALKER.walk(s -> s.limit(MAX_DEPTH)
+				.filter(f -> !isSdkFrame(f.getClassName()))
+				.findFirst());
+		return frame.isPresent() ? frame.get().toStackTraceElement() : null;
+	}
+
+	static boolean isSdkFrame(String className) {
+		return className.startsWith("com.yonyou.cloud.track.Track")
+				|| className.equals("com.yonyou.cloud.track.CallerLocator");
+	}
+}
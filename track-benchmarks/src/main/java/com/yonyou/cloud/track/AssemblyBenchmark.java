@@ -0,0 +1,61 @@
+package com.yonyou.cloud.track;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yonyou.cloud.exceptions.InvalidArgumentException;
+
+/**
+ * Track.addEvent 的事件组装：属性校验、公共属性合并、lib 属性和调用位置，消费者不做任何处理
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AssemblyBenchmark {
+
+	@Param({ "DISABLED", "SAMPLED", "CACHED" })
+	public Track.CallerInfoMode callerInfoMode;
+
+	@Param({ "false", "true" })
+	public boolean superProperties;
+
+	private Track track;
+	private Map<String, Object> properties;
+
+	@Setup
+	public void setup() {
+		track = new Track(new BenchmarkData.NullConsumer());
+		track.setCallerInfoMode(callerInfoMode);
+		if (superProperties) {
+			track.registerSuperProperties(BenchmarkData.superProperties());
+		}
+		properties = BenchmarkData.properties();
+	}
+
+	@Benchmark
+	public void trackMap() throws InvalidArgumentException {
+		track.track("buy", "order", properties);
+	}
+
+	@Benchmark
+	public void trackBuilder() throws InvalidArgumentException {
+		track.event("buy", "order").put("product_id", "P-10086").put("product_name", "云主机 2核4G")
+				.put("category", "cloud").put("price", 128.5).put("quantity", 3).put("discount", false)
+				.put("channel", "app").put("tenant_id", "tenant-0001").emit();
+	}
+}
@@ -0,0 +1,111 @@
+package com.yonyou.cloud.track;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.yonyou.cloud.exceptions.InvalidArgumentException;
+
+/**
+ * 各基准测试共用的样例数据和空实现
+ */
+final class BenchmarkData {
+
+	private BenchmarkData() {
+	}
+
+	/**
+	 * @return 典型的业务事件属性，包含字符串、数值、布尔和日期
+	 */
+	static Map<String, Object> properties() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("product_id", "P-10086");
+		properties.put("product_name", "云主机 2核4G");
+		properties.put("category", "cloud");
+		properties.put("price", 128.5);
+		properties.put("quantity", 3);
+		properties.put("discount", false);
+		properties.put("order_time", new Date(1510641026414L));
+		properties.put("channel", "app");
+		properties.put("tenant_id", "tenant-0001");
+		properties.put("user_agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64)");
+		return properties;
+	}
+
+	static Map<String, Object> superProperties() {
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("app_version", "2.3.1");
+		properties.put("env", "production");
+		properties.put("region", "cn-north-1");
+		return properties;
+	}
+
+	/**
+	 * @return 由 Track 组装的真实事件，包含 lib 属性和公共属性
+	 */
+	static Map<String, Object> event() throws InvalidArgumentException {
+		final List<Map<String, Object>> captured = new ArrayList<Map<String, Object>>(1);
+		Track track = new Track(new NullConsumer() {
+			@Override
+			public void send(Map<String, Object> message) {
+				captured.add(message);
+			}
+		});
+		track.registerSuperProperties(superProperties());
+		track.track("buy", "order", properties());
+		return captured.get(0);
+	}
+
+	/**
+	 * 只计数、不保存事件的消费者，用于单独测量事件组装
+	 */
+	static class NullConsumer implements Track.Consumer {
+		final LongAdder count = new LongAdder();
+
+		@Override
+		public void send(Map<String, Object> message) {
+			count.increment();
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * 丢弃写入内容的文件，用于单独测量缓冲和合并的开销
+	 */
+	static class NullFileWriterFactory implements Track.LoggingFileWriterFactory {
+		final LongAdder bytes = new LongAdder();
+
+		@Override
+		public Track.LoggingFileWriter getFileWriter(String fileName, String scheduleFileName) {
+			return new Track.LoggingFileWriter() {
+				@Override
+				public boolean isValid(String name) {
+					return true;
+				}
+
+				@Override
+				public boolean write(ByteBuffer[] buffers) {
+					for (ByteBuffer buffer : buffers) {
+						bytes.add(buffer.remaining());
+					}
+					return true;
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.yonyou.cloud.track;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yonyou.cloud.exceptions.InvalidArgumentException;
+import com.yonyou.cloud.track.util.ByteArrayBuffer;
+
+/**
+ * 把组装好的事件编码为一行 JSON，与原来 Track 中 ObjectMapper 的写入路径对比
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodingBenchmark {
+
+	private Map<String, Object> event;
+	private JsonEventEncoder encoder;
+	private ByteArrayBuffer buffer;
+	private ObjectMapper objectMapper;
+	private StringBuilder messageBuffer;
+
+	@Setup
+	public void setup() throws InvalidArgumentException {
+		event = BenchmarkData.event();
+
+		encoder = new JsonEventEncoder();
+		buffer = new ByteArrayBuffer(8192);
+		// 与原来的 LoggingConsumer 相同：Track 的 ObjectMapper 配置，忽略 null 值，逐条追加到 StringBuilder
+		objectMapper = Track.getJsonObjectMapper();
+		objectMapper.setSerializationInclusion(Include.NON_NULL);
+		messageBuffer = new StringBuilder(8192);
+	}
+
+	@Benchmark
+	public int encoder() {
+		buffer.reset();
+		encoder.encode(event, buffer);
+		return buffer.length();
+	}
+
+	@Benchmark
+	public int objectMapper() throws JsonProcessingException {
+		messageBuffer.setLength(0);
+		messageBuffer.append(objectMapper.writeValueAsString(event));
+		messageBuffer.append("\n");
+		return messageBuffer.length();
+	}
+}
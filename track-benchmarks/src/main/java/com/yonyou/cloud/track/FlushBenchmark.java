@@ -0,0 +1,104 @@
+package com.yonyou.cloud.track;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yonyou.cloud.exceptions.InvalidArgumentException;
+
+/**
+ * 缓冲一批事件后 flush 写入真实文件，比较各种文件写入方式，结果按事件数计算
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FlushBenchmark {
+
+	private final static int BATCH_SIZE = 100;
+
+	public enum Writer {
+		CONCURRENT, CHANNEL, MAPPED
+	}
+
+	@Param({ "CONCURRENT", "CHANNEL", "MAPPED" })
+	public Writer writer;
+
+	private File directory;
+	private Track.InnerLoggingConsumer consumer;
+	private Map<String, Object> event;
+
+	@Setup(Level.Trial)
+	public void setupTrial() throws IOException, InvalidArgumentException {
+		directory = Files.createTempDirectory("track-flush").toFile();
+		event = BenchmarkData.event();
+	}
+
+	@Setup(Level.Iteration)
+	public void setupIteration() throws IOException {
+		String prefix = new File(directory, "benchmark.log").getPath();
+		switch (writer) {
+		case CHANNEL:
+			consumer = new Track.ChannelLoggingConsumer(prefix, 64 * 1024, 1, 0, false);
+			break;
+		case MAPPED:
+			consumer = new Track.MappedLoggingConsumer(prefix, 64 * 1024, 1, 0, 8 * 1024 * 1024, 1000);
+			break;
+		default:
+			consumer = new Track.ConcurrentLoggingConsumer(prefix, 64 * 1024, 1, 0);
+			break;
+		}
+	}
+
+	/**
+	 * 每轮结束删除写出的文件，避免占满磁盘
+	 */
+	@TearDown(Level.Iteration)
+	public void tearDownIteration() {
+		consumer.close();
+		deleteFiles();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() {
+		deleteFiles();
+		directory.delete();
+	}
+
+	private void deleteFiles() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void sendAndFlush() {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			consumer.send(event);
+		}
+		consumer.flush();
+	}
+}
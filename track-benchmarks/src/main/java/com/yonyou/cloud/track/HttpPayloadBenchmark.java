@@ -0,0 +1,97 @@
+package com.yonyou.cloud.track;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yonyou.cloud.exceptions.InvalidArgumentException;
+import com.yonyou.cloud.track.util.ByteArrayBuffer;
+
+/**
+ * HttpConsumer 构造请求并把请求体写到输出流，不经过网络
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HttpPayloadBenchmark {
+
+	public enum Payload {
+		FORM, GZIP_BODY
+	}
+
+	@Param({ "FORM", "GZIP_BODY" })
+	public Payload payload;
+
+	/**
+	 * 每批的事件数
+	 */
+	@Param({ "50", "500" })
+	public int batchSize;
+
+	private Track.HttpConsumer consumer;
+	private byte[] data;
+	private int length;
+	private final CountingOutputStream out = new CountingOutputStream();
+
+	@Setup
+	public void setup() throws InvalidArgumentException {
+		consumer = new Track.HttpConsumer("http://localhost:8106/sa", null);
+		if (payload == Payload.GZIP_BODY) {
+			consumer.setGzipBody(6);
+		}
+
+		Map<String, Object> event = BenchmarkData.event();
+		JsonEventEncoder encoder = new JsonEventEncoder();
+		ByteArrayBuffer buffer = new ByteArrayBuffer(batchSize * 512);
+		buffer.write('[');
+		for (int i = 0; i < batchSize; i++) {
+			if (i > 0) {
+				buffer.write(',');
+			}
+			encoder.encodeValue(event, buffer);
+		}
+		buffer.write(']');
+		data = buffer.array();
+		length = buffer.length();
+	}
+
+	@Benchmark
+	public long buildAndWrite() throws IOException {
+		HttpUriRequest request = consumer.getHttpRequest(data, length);
+		out.count = 0;
+		((HttpEntityEnclosingRequest) request).getEntity().writeTo(out);
+		return out.count;
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
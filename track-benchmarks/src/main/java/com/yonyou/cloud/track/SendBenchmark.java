@@ -0,0 +1,79 @@
+package com.yonyou.cloud.track;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yonyou.cloud.exceptions.InvalidArgumentException;
+
+/**
+ * InnerLoggingConsumer.send 在不同线程数下的吞吐，文件写入被替换为空实现，只测量编码、缓冲和锁竞争
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SendBenchmark {
+
+	/**
+	 * 分段个数，1 即所有线程共用一个缓冲区
+	 */
+	@Param({ "1", "16" })
+	public int stripes;
+
+	private Track.InnerLoggingConsumer consumer;
+	private Map<String, Object> event;
+
+	@Setup
+	public void setup() throws IOException, InvalidArgumentException {
+		consumer = new Track.InnerLoggingConsumer(new BenchmarkData.NullFileWriterFactory(), "benchmark", 64 * 1024,
+				stripes, Track.InnerLoggingConsumer.DEFAULT_MAX_STALE_MILLIS);
+		event = BenchmarkData.event();
+	}
+
+	@TearDown
+	public void tearDown() {
+		consumer.close();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void send1() {
+		consumer.send(event);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void send4() {
+		consumer.send(event);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public void send16() {
+		consumer.send(event);
+	}
+
+	@Benchmark
+	@Threads(64)
+	public void send64() {
+		consumer.send(event);
+	}
+
+}
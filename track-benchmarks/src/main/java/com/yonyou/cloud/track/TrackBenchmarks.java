@@ -0,0 +1,30 @@
+package com.yonyou.cloud.track;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 基准测试入口，参数与 JMH 命令行一致，指定 -Dtrack.benchmark.gc=true 时附加 GC profiler 输出分配速率
+ *
+ * <pre>
+ * mvn -pl track-benchmarks -am package
+ * java -jar track-benchmarks/target/benchmarks.jar SendBenchmark
+ * java -Dtrack.benchmark.gc=true -jar track-benchmarks/target/benchmarks.jar SendBenchmark
+ * </pre>
+ */
+public class TrackBenchmarks {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(commandLineOptions);
+		if (Boolean.getBoolean("track.benchmark.gc")) {
+			builder.addProfiler(GCProfiler.class);
+		}
+		new Runner(builder.build()).run();
+	}
+}
@@ -0,0 +1,58 @@
+package com.yonyou.cloud.track;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 事件名和属性名的校验，属性值的校验包含在 {@link AssemblyBenchmark} 中
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ValidationBenchmark {
+
+	// 超过 KeyValidator 的缓存上限，保证每次都重新扫描
+	private final static int UNCACHED_KEYS = 16384;
+
+	private String[] uncachedKeys;
+	private int next;
+
+	@Setup
+	public void setup() {
+		uncachedKeys = new String[UNCACHED_KEYS];
+		for (int i = 0; i < UNCACHED_KEYS; i++) {
+			uncachedKeys[i] = "uncached_property_" + i;
+		}
+		KeyValidator.isValid("product_id");
+	}
+
+	@Benchmark
+	public boolean cachedKey() {
+		return KeyValidator.isValid("product_id");
+	}
+
+	@Benchmark
+	public boolean uncachedKey() {
+		String key = uncachedKeys[next];
+		next = (next + 1) & (UNCACHED_KEYS - 1);
+		return KeyValidator.isValid(key);
+	}
+
+	@Benchmark
+	public boolean reservedKey() {
+		return KeyValidator.isValid("distinct_id");
+	}
+}